@@ -0,0 +1,87 @@
+package uk.ac.nulondon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks deleting a highlighted seam and undoing the deletion. The seam search runs in the
+ * per-invocation setup, so only the edit itself is timed, and every deletion is undone again
+ * so the image keeps its size for the whole run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "--add-modules=jdk.incubator.vector"})
+public class EditBenchmark {
+
+    /**
+     * The image being edited, shared by the per-invocation states.
+     */
+    @State(Scope.Thread)
+    public static class Image {
+        @Param({"256", "1024", "2048", "4096", "8192"})
+        int size;
+
+        ImageEdit imageEdit;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            imageEdit = new ImageEdit();
+            imageEdit.imageData = SyntheticImages.imageData(size);
+        }
+    }
+
+    /**
+     * A seam highlighted before each deleteColumn and put back after it.
+     */
+    @State(Scope.Thread)
+    public static class Highlighted {
+        List<Pixel> seam;
+
+        @Setup(Level.Invocation)
+        public void highlight(Image image) {
+            seam = image.imageEdit.highlightColumn("r");
+        }
+
+        @TearDown(Level.Invocation)
+        public void restore(Image image) {
+            image.imageEdit.undo();
+        }
+    }
+
+    /**
+     * A seam highlighted and deleted before each undo.
+     */
+    @State(Scope.Thread)
+    public static class Deleted {
+        @Setup(Level.Invocation)
+        public void delete(Image image) {
+            image.imageEdit.deleteColumn(image.imageEdit.highlightColumn("r"));
+        }
+    }
+
+    @Benchmark
+    public void deleteColumn(Image image, Highlighted highlighted) {
+        image.imageEdit.deleteColumn(highlighted.seam);
+    }
+
+    @Benchmark
+    public void undo(Image image, Deleted deleted) {
+        image.imageEdit.undo();
+    }
+}
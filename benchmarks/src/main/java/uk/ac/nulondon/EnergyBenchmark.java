@@ -0,0 +1,55 @@
+package uk.ac.nulondon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the energy map: a full pass through iterateEnergy, and calcEnergy called on every
+ * pixel one at a time, which shows the cost of a single pixel without the parallel split.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "--add-modules=jdk.incubator.vector"})
+public class EnergyBenchmark {
+    @Param({"256", "1024", "2048", "4096", "8192"})
+    int size;
+
+    private ImageData imageData;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        imageData = SyntheticImages.imageData(size);
+    }
+
+    @Benchmark
+    public void iterateEnergy() {
+        imageData.iterateEnergy();
+    }
+
+    @Benchmark
+    public double calcEnergy() {
+        PixelStore store = imageData.store();
+        double total = 0;
+        for (int row = 0; row < store.getHeight(); row++) {
+            for (int col = 0; col < store.getWidth(); col++) {
+                total += store.calcEnergy(row, col);
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,73 @@
+package uk.ac.nulondon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks decoding a PNG into ImageData, taking it from a warm ImageCache instead, and encoding
+ * it back out. The shared cache is turned off so importImage always decodes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "--add-modules=jdk.incubator.vector", "-Dimage.cache=0"})
+public class ImportExportBenchmark {
+    @Param({"256", "1024", "2048", "4096", "8192"})
+    int size;
+
+    private File input;
+    private File output;
+    private ImageData loaded;
+    private ImageCache cache;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticImages.quiet();
+        input = SyntheticImages.write(size);
+        output = File.createTempFile("export-" + size + "-", ".png");
+        output.deleteOnExit();
+        loaded = SyntheticImages.imageData(size);
+        cache = new ImageCache(Long.MAX_VALUE);
+        cache.load(input);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        input.delete();
+        output.delete();
+    }
+
+    @Benchmark
+    public ImageData importImage() throws IOException {
+        ImageData imageData = new ImageData();
+        imageData.importImage(input.getPath());
+        return imageData;
+    }
+
+    @Benchmark
+    public PixelStore importCached() throws IOException {
+        return cache.load(input);
+    }
+
+    @Benchmark
+    public void exportImage() {
+        loaded.exportImage(output.getPath());
+    }
+}
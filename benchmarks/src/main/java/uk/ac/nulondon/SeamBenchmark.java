@@ -0,0 +1,54 @@
+package uk.ac.nulondon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks finding the greatest-blue and lowest-energy seams on an image whose energies are up to date.
+ * The seams ImageData keeps for an unchanged image are dropped before every call, so each call searches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "--add-modules=jdk.incubator.vector"})
+public class SeamBenchmark {
+    @Param({"256", "1024", "2048", "4096", "8192"})
+    int size;
+
+    private ImageData imageData;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        imageData = SyntheticImages.imageData(size);
+    }
+
+    @Setup(Level.Invocation)
+    public void forgetSeams() {
+        imageData.forgetSeams();
+    }
+
+    @Benchmark
+    public List<Pixel> getSeamBlue() {
+        return imageData.getSeam(true);
+    }
+
+    @Benchmark
+    public List<Pixel> getSeamEnergy() {
+        return imageData.getSeam(false);
+    }
+}
@@ -0,0 +1,90 @@
+package uk.ac.nulondon;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * The SyntheticImages class makes repeatable images for the benchmarks.
+ * Smooth gradients with some hard-edged shapes and a little noise give the energy map and the
+ * PNG encoder realistic work, which pure noise or a flat color would not.
+ */
+final class SyntheticImages {
+    private SyntheticImages() {
+    }
+
+    /**
+     * This will draw a square image, always the same for the same size
+     * @param size the width and height of the image
+     * @return the image
+     */
+    static BufferedImage create(int size) {
+        Random random = new Random(size);
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int red = x * 255 / size;
+                int green = y * 255 / size;
+                int blue = (x + y) * 127 / size;
+                int noise = random.nextInt(9) - 4;
+                row[x] = PixelStore.pack(clamp(red + noise), clamp(green + noise), clamp(blue + noise));
+            }
+            image.setRGB(0, y, size, 1, row, 0, size);
+        }
+        Graphics2D graphics = image.createGraphics();
+        for (int i = 0; i < 24; i++) {
+            graphics.setColor(new Color(random.nextInt(1 << 24)));
+            int width = random.nextInt(size / 4 + 1) + 1;
+            int height = random.nextInt(size / 4 + 1) + 1;
+            if (i % 2 == 0) {
+                graphics.fillRect(random.nextInt(size), random.nextInt(size), width, height);
+            } else {
+                graphics.fillOval(random.nextInt(size), random.nextInt(size), width, height);
+            }
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * This will make an ImageData holding a synthetic image, with its energies computed
+     * @param size the width and height of the image
+     * @return the image data
+     */
+    static ImageData imageData(int size) {
+        ImageData imageData = new ImageData();
+        imageData.setStore(PixelStore.fromImage(create(size)));
+        imageData.iterateEnergy();
+        return imageData;
+    }
+
+    /**
+     * This will write a synthetic image to a temporary PNG file
+     * @param size the width and height of the image
+     * @return the file, deleted when the JVM exits
+     */
+    static File write(int size) throws IOException {
+        File file = File.createTempFile("synthetic-" + size + "-", ".png");
+        file.deleteOnExit();
+        ImageIO.write(create(size), "png", file);
+        return file;
+    }
+
+    /**
+     * This will stop the progress lines ImageData prints on every import from flooding the results
+     */
+    static void quiet() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,325 @@
+package uk.ac.nulondon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * The BatchMain class retargets many images without any prompts.
+ * Each image gets its own ImageEdit and is decoded, carved to its target size and written out
+ * by one of a fixed number of workers. Only a bounded number of images are decoded or encoded
+ * at the same time, so memory stays bounded however long the input list is. Only inputs listed
+ * more than once go through the shared ImageCache, since caching an image nobody asks for again
+ * only takes heap away from the workers.
+ *
+ * Usage:
+ *   BatchMain &lt;input directory&gt; &lt;output directory&gt; &lt;width&gt;x&lt;height&gt; [threads]
+ *   BatchMain --manifest &lt;file&gt; &lt;output directory&gt; [threads]
+ * A manifest has one image per line as "path width height [output name]"; blank lines and lines
+ * starting with # are skipped. Images are written as &lt;name&gt;_&lt;width&gt;x&lt;height&gt; in the format
+ * set with -Doutput.format, unless the manifest names the output.
+ */
+public class BatchMain {
+    // File names picked up from an input directory
+    private static final Pattern IMAGE_NAME = Pattern.compile(".*\\.(png|jpe?g|bmp|gif)");
+
+    // Nanoseconds in a second and pixels in a megapixel, for the summary
+    static final double NANOS_PER_SECOND = 1e9;
+    static final double MEGAPIXEL = 1e6;
+    // Roughly what a pixel of an image on the heap costs while it is decoded and carved
+    private static final long HEAP_BYTES_PER_PIXEL = 24;
+
+    // One image to retarget: where to read it, where and in which format to write it and the size to carve it to
+    record Job(String input, String output, int width, int height, OutputFormat format) {
+    }
+
+    // Counters shared by every worker
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong pixelsIn = new AtomicLong();
+    private final AtomicLong seams = new AtomicLong();
+    // Limits on how many images are being decoded, held in memory and encoded at once
+    private final Semaphore decoding;
+    private final Semaphore inFlight;
+    private final Semaphore encoding;
+    private final int threads;
+    // Images with more pixels than this are carved out of memory-mapped files instead of the heap
+    private long mappedPixels;
+    // Inputs of the running batch that appear in more than one job, by absolute path
+    private Set<String> repeated = Set.of();
+
+    /**
+     * Constructor that sets up a batch with a number of workers
+     * @param threads how many images are carved at the same time
+     */
+    public BatchMain(int threads) {
+        this.threads = threads;
+        decoding = new Semaphore(Math.max(1, threads / 2));
+        inFlight = new Semaphore(threads * 2);
+        encoding = new Semaphore(Math.max(1, threads / 2));
+        // the workers share the heap the image cache may not be holding on to
+        long heap = Math.max(0, Runtime.getRuntime().maxMemory() - ImageCache.shared().budget());
+        mappedPixels = heap / (HEAP_BYTES_PER_PIXEL * threads);
+    }
+
+    /**
+     * @param pixels images with more pixels than this are carved out of memory-mapped files
+     */
+    void setMappedPixels(long pixels) {
+        mappedPixels = pixels;
+    }
+
+    /**
+     * This will run every job on the workers and wait for all of them to finish
+     * @param jobs the images to retarget
+     * @return a one line summary of the throughput
+     */
+    public String run(List<Job> jobs) throws InterruptedException {
+        long start = System.nanoTime();
+        Set<String> seen = new HashSet<>();
+        Set<String> twice = new HashSet<>();
+        for (Job job : jobs) {
+            String path = new File(job.input()).getAbsolutePath();
+            if (!seen.add(path)) twice.add(path);
+        }
+        repeated = twice;
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            for (Job job : jobs) {
+                // stop queueing once enough images are waiting or in progress
+                inFlight.acquire();
+                workers.execute(() -> {
+                    try {
+                        process(job);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        double seconds = (System.nanoTime() - start) / NANOS_PER_SECOND;
+        return String.format(Locale.ROOT,
+                "%d images (%d failed) in %.2f s: %.2f images/s, %.2f MP/s, %d seams",
+                done.get(), failed.get(), seconds, done.get() / seconds,
+                pixelsIn.get() / MEGAPIXEL / seconds, seams.get());
+    }
+
+    /**
+     * This will decode, carve and write one image
+     * @param job the image to retarget
+     */
+    private void process(Job job) {
+        try {
+            int[] size = MappedPixelStore.imageSize(job.input());
+            if ((long) size[0] * size[1] > mappedPixels) {
+                processMapped(job);
+                return;
+            }
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            System.out.println("ERROR PROCESSING " + job.input() + ": " + e.getMessage());
+            return;
+        }
+        ImageEdit imageEdit = new ImageEdit();
+        if (threads > 1) {
+            // the workers already keep the cores busy, so each image stays on its own thread
+            imageEdit.imageData.setParallelism(1);
+        }
+        try {
+            boolean cached = repeated.contains(new File(job.input()).getAbsolutePath());
+            decoding.acquire();
+            try {
+                imageEdit.imageData.importImage(job.input(), cached);
+            } finally {
+                decoding.release();
+            }
+            int width = imageEdit.imageData.getWidth();
+            int height = imageEdit.imageData.getHeight();
+            imageEdit.carveTo(job.width(), job.height());
+
+            encoding.acquire();
+            try {
+                imageEdit.imageData.exportImage(job.output(), job.format());
+            } finally {
+                encoding.release();
+            }
+            pixelsIn.addAndGet((long) width * height);
+            seams.addAndGet(Math.abs(width - job.width()) + Math.abs(height - job.height()));
+            done.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            System.out.println("ERROR PROCESSING " + job.input() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            failed.incrementAndGet();
+            Thread.currentThread().interrupt();
+        } finally {
+            // the undo journal may have spilled to a temp file, which would otherwise outlive the job
+            imageEdit.close();
+        }
+    }
+
+    /**
+     * This will carve an image too large for the heap through a MappedPixelStore.
+     * Such images can only be narrowed, since the mapped store only removes vertical seams.
+     * @param job the image to retarget
+     */
+    private void processMapped(Job job) {
+        try {
+            MappedPixelStore store;
+            decoding.acquire();
+            try {
+                store = MappedPixelStore.importImage(job.input(), null);
+            } finally {
+                decoding.release();
+            }
+            try (store) {
+                int width = store.getWidth();
+                int height = store.getHeight();
+                if (job.height() != height || job.width() < 1 || job.width() > width) {
+                    throw new IllegalArgumentException("Images larger than the heap can only be narrowed, to "
+                            + width + "x" + height + " or less wide");
+                }
+                store.carveColumns(width - job.width());
+
+                encoding.acquire();
+                try {
+                    job.format().write(store.toImage(), new File(job.output()));
+                } finally {
+                    encoding.release();
+                }
+                pixelsIn.addAndGet((long) width * height);
+                seams.addAndGet(width - job.width());
+                done.incrementAndGet();
+            }
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            System.out.println("ERROR PROCESSING " + job.input() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            failed.incrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This will list every image in a directory with the same target size
+     * @param input the directory to read images from
+     * @param output the directory to write images to
+     * @param width the target width
+     * @param height the target height
+     * @param format the format to write images in
+     * @return a job per image, in name order
+     */
+    static List<Job> directoryJobs(File input, File output, int width, int height, OutputFormat format) {
+        List<Job> jobs = new ArrayList<>();
+        File[] files = input.listFiles((dir, name) -> IMAGE_NAME.matcher(name.toLowerCase(Locale.ROOT)).matches());
+        if (files == null) return jobs;
+        Arrays.sort(files);
+        Set<String> outputs = new HashSet<>();
+        for (File file : files) {
+            String path = outputPath(output, file.getName(), width, height, format);
+            addJob(jobs, outputs, new Job(file.getPath(), path, width, height, format));
+        }
+        return jobs;
+    }
+
+    /**
+     * This will read the images and target sizes listed in a manifest
+     * @param manifest the manifest file
+     * @param output the directory to write images to
+     * @param format the format to write images in, unless a line names its output
+     * @return a job per line
+     */
+    static List<Job> manifestJobs(Path manifest, File output, OutputFormat format) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        Set<String> outputs = new HashSet<>();
+        for (String line : Files.readAllLines(manifest)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] parts = line.split("\\s+");
+            if (parts.length != 3 && parts.length != 4) {
+                throw new IllegalArgumentException("Manifest lines must be \"path width height [output name]\": "
+                        + line);
+            }
+            int width = Integer.parseInt(parts[1]);
+            int height = Integer.parseInt(parts[2]);
+            String path = parts.length == 4 ? new File(output, parts[3]).getPath()
+                    : outputPath(output, new File(parts[0]).getName(), width, height, format);
+            addJob(jobs, outputs, new Job(parts[0], path, width, height, format));
+        }
+        return jobs;
+    }
+
+    /**
+     * This will add a job, unless an earlier job is already written to the same file
+     * @param jobs the jobs so far
+     * @param outputs the files the jobs so far are written to
+     * @param job the job to add
+     */
+    private static void addJob(List<Job> jobs, Set<String> outputs, Job job) {
+        if (!outputs.add(job.output())) {
+            throw new IllegalArgumentException("More than one image would be written to " + job.output());
+        }
+        jobs.add(job);
+    }
+
+    /**
+     * @return where an image with the given file name is written, named after its target size and
+     *         with the extension of the format
+     */
+    private static String outputPath(File output, String name, int width, int height, OutputFormat format) {
+        int dot = name.lastIndexOf('.');
+        String base = dot < 0 ? name : name.substring(0, dot);
+        return new File(output, base + "_" + width + "x" + height + "." + format.extension()).getPath();
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: BatchMain <input directory> <output directory> <width>x<height> [threads]");
+        System.out.println("       BatchMain --manifest <file> <output directory> [threads]");
+    }
+
+    //Main method that runs a whole batch without prompts
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        OutputFormat format = OutputFormat.parse(System.getProperty("output.format", "png"));
+        List<Job> jobs;
+        File output;
+        if (args.length >= 3 && args[0].equals("--manifest")) {
+            output = new File(args[2]);
+            jobs = manifestJobs(Path.of(args[1]), output, format);
+            if (args.length > 3) threads = Integer.parseInt(args[3]);
+        } else if (args.length >= 3 && args[2].matches("\\d+x\\d+")) {
+            String[] size = args[2].split("x");
+            output = new File(args[1]);
+            jobs = directoryJobs(new File(args[0]), output, Integer.parseInt(size[0]), Integer.parseInt(size[1]),
+                    format);
+            if (args.length > 3) threads = Integer.parseInt(args[3]);
+        } else {
+            printUsage();
+            return;
+        }
+        if (!output.isDirectory() && !output.mkdirs()) {
+            System.out.println("Cannot create output directory " + output);
+            return;
+        }
+        Metrics.startFromProperties();
+        System.out.println(new BatchMain(threads).run(jobs));
+        Metrics.stop();
+    }
+}
@@ -0,0 +1,448 @@
+package uk.ac.nulondon;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The CarvingServer class keeps one JVM warm and carves images sent to it over HTTP, so small jobs
+ * do not pay for starting a JVM and compiling the seam code again each time.
+ * Every request runs on its own virtual thread. Each uploaded image gets a session with its own
+ * ImageEdit, so seams can be removed and undone over several requests. Decoding, carving and
+ * encoding only run on a bounded number of requests at once, and the rest wait their turn without
+ * holding a platform thread. Sessions left alone for too long are closed.
+ *
+ * Endpoints, all answering with "width height" unless noted:
+ *   POST   /sessions                      the body is an image; answers with the new session id
+ *   POST   /sessions/{id}/seams?mode=b&amp;count=1&amp;direction=column   removes seams, mode b, c or r
+ *   POST   /sessions/{id}/undo?count=1    undoes the last edits
+ *   GET    /sessions/{id}/image?format=png   answers with the image, in any OutputFormat
+ *   DELETE /sessions/{id}                 closes the session
+ *
+ * Usage:
+ *   CarvingServer [port] [jobs] [idle seconds]
+ */
+public class CarvingServer {
+    // Path every endpoint lives under
+    static final String SESSIONS = "/sessions";
+    // The shortest time between two passes closing idle sessions
+    private static final long MIN_EVICT_MILLIS = 10;
+    // What main listens on and how long it keeps idle sessions unless told otherwise
+    private static final int DEFAULT_PORT = 8080;
+    private static final long DEFAULT_IDLE_SECONDS = 600;
+
+    // A class for one uploaded image and its edits
+    static class Session {
+        private final ImageEdit imageEdit = new ImageEdit();
+        // held while a request works on the image, so each session runs one request at a time.
+        // a lock rather than synchronized, which would pin the virtual thread while it waits for a job
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile long lastUsed = System.nanoTime();
+    }
+
+    private final HttpServer server;
+    private final ExecutorService requests = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "session-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    // Limits how many requests decode, carve or encode at the same time
+    private final Semaphore jobs;
+    // How many jobs are running now, and the most that ever ran at once
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger peakJobs = new AtomicInteger();
+    private final int parallelism;
+    private final long idleNanos;
+
+    /**
+     * Constructor that binds the server without starting it
+     * @param port the port to listen on, 0 for any free port
+     * @param jobs how many images are decoded, carved or encoded at the same time
+     * @param idleMillis how long a session may go without a request before it is closed
+     */
+    public CarvingServer(int port, int jobs, long idleMillis) throws IOException {
+        if (jobs < 1 || idleMillis < 1) {
+            throw new IllegalArgumentException("The server needs at least one job and a positive idle time");
+        }
+        this.jobs = new Semaphore(jobs, true);
+        // with several jobs at once the cores are already busy, so each image stays on its own thread
+        parallelism = jobs > 1 ? 1 : Runtime.getRuntime().availableProcessors();
+        idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(requests);
+    }
+
+    /**
+     * This will start answering requests and closing idle sessions
+     */
+    public void start() {
+        // registered here rather than in the constructor so the handler never sees a half-built server
+        server.createContext(SESSIONS, this::handle);
+        long period = Math.max(TimeUnit.NANOSECONDS.toMillis(idleNanos) / 2, MIN_EVICT_MILLIS);
+        evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        server.start();
+    }
+
+    /**
+     * This will stop answering requests and close every session
+     */
+    public void stop() {
+        server.stop(0);
+        evictor.shutdownNow();
+        requests.shutdown();
+        for (String id : sessions.keySet()) {
+            close(id);
+        }
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return how many sessions are open
+     */
+    int sessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @param id the id of a session
+     * @return true if the session is open
+     */
+    boolean hasSession(String id) {
+        return sessions.containsKey(id);
+    }
+
+    /**
+     * @return the most jobs that ever ran at the same time
+     */
+    int peakJobs() {
+        return peakJobs.get();
+    }
+
+    /**
+     * This will close every session that has not had a request for longer than the idle time.
+     * Sessions busy with a request are left for the next pass.
+     */
+    void evictIdle() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            Session session = entry.getValue();
+            if (now - session.lastUsed <= idleNanos || !session.lock.tryLock()) continue;
+            try {
+                if (now - session.lastUsed > idleNanos && sessions.remove(entry.getKey(), session)) {
+                    session.imageEdit.close();
+                }
+            } finally {
+                session.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * This will send a request to the endpoint it is for and turn failures into status codes
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            if (!SESSIONS.equals(path) && !path.startsWith(SESSIONS + "/")) {
+                send(exchange, HttpURLConnection.HTTP_NOT_FOUND, "No endpoint " + path);
+                return;
+            }
+            String[] parts = path.substring(SESSIONS.length()).split("/");
+            String method = exchange.getRequestMethod();
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            try {
+                if (parts.length <= 1) {
+                    if (!"POST".equals(method)) {
+                        send(exchange, HttpURLConnection.HTTP_BAD_METHOD, "Use POST to upload an image");
+                        return;
+                    }
+                    send(exchange, HttpURLConnection.HTTP_CREATED, upload(exchange));
+                    return;
+                }
+                String id = parts[1];
+                String action = parts.length > 2 ? parts[2] : "";
+                if (parts.length > 3) {
+                    send(exchange, HttpURLConnection.HTTP_NOT_FOUND, "No endpoint " + path);
+                } else if ("DELETE".equals(method) && action.isEmpty()) {
+                    send(exchange, close(id) ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_NOT_FOUND, id);
+                } else if ("POST".equals(method) && "seams".equals(action)) {
+                    send(exchange, HttpURLConnection.HTTP_OK, removeSeams(id, query.getOrDefault("mode", "b"),
+                            Integer.parseInt(query.getOrDefault("count", "1")),
+                            "row".equals(query.getOrDefault("direction", "column"))));
+                } else if ("POST".equals(method) && "undo".equals(action)) {
+                    send(exchange, HttpURLConnection.HTTP_OK,
+                            undo(id, Integer.parseInt(query.getOrDefault("count", "1"))));
+                } else if ("GET".equals(method) && "image".equals(action)) {
+                    download(exchange, id, OutputFormat.parse(query.getOrDefault("format", "png")));
+                } else {
+                    send(exchange, HttpURLConnection.HTTP_BAD_METHOD, method + " is not supported on " + path);
+                }
+            } catch (NoSuchSessionException e) {
+                send(exchange, HttpURLConnection.HTTP_NOT_FOUND, "No session " + e.getMessage());
+            } catch (IllegalArgumentException | IOException e) {
+                send(exchange, HttpURLConnection.HTTP_BAD_REQUEST, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                send(exchange, HttpURLConnection.HTTP_UNAVAILABLE, "Interrupted");
+            } catch (RuntimeException e) {
+                System.out.println("ERROR SERVING " + exchange.getRequestURI() + ": " + e);
+                send(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, String.valueOf(e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * This will decode an uploaded image into a new session
+     * @return the id of the session
+     */
+    private String upload(HttpExchange exchange) throws IOException, InterruptedException {
+        Session session = new Session();
+        session.imageEdit.imageData.setParallelism(parallelism);
+        acquireJob();
+        try {
+            session.imageEdit.imageData.importImage(exchange.getRequestBody());
+        } catch (IOException | RuntimeException e) {
+            session.imageEdit.close();
+            throw e;
+        } finally {
+            releaseJob();
+        }
+        String id = UUID.randomUUID().toString();
+        sessions.put(id, session);
+        return id;
+    }
+
+    /**
+     * This will remove seams one at a time, each one its own edit to undo, the same way as the menu
+     * @param mode b for the bluest seam, c for the bluest straight column, r for the lowest energy
+     * @param count how many seams to remove
+     * @param horizontal true to remove rows instead of columns
+     * @return the size of the image afterwards
+     */
+    String removeSeams(String id, String mode, int count, boolean horizontal) throws InterruptedException {
+        if (!"b".equals(mode) && !"c".equals(mode) && !"r".equals(mode)) {
+            throw new IllegalArgumentException("Mode must be b, c or r");
+        }
+        if (horizontal && "c".equals(mode)) {
+            throw new IllegalArgumentException("Straight columns cannot be removed as rows");
+        }
+        Session session = lock(id);
+        try {
+            ImageData imageData = session.imageEdit.imageData;
+            int left = horizontal ? imageData.getHeight() : imageData.getWidth();
+            if (count < 0 || count >= left) {
+                throw new IllegalArgumentException("Count must be between 0 and " + (left - 1));
+            }
+            acquireJob();
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (horizontal) {
+                        session.imageEdit.deleteRow(session.imageEdit.highlightRow(mode));
+                    } else {
+                        session.imageEdit.deleteColumn(session.imageEdit.highlightColumn(mode));
+                    }
+                }
+            } finally {
+                releaseJob();
+            }
+            return size(imageData);
+        } finally {
+            unlock(session);
+        }
+    }
+
+    /**
+     * This will undo the last edits of a session
+     * @param count how many edits to undo, at most the number there are
+     * @return the size of the image afterwards
+     */
+    String undo(String id, int count) throws InterruptedException {
+        Session session = lock(id);
+        try {
+            if (count < 0 || count > session.imageEdit.editCount()) {
+                throw new IllegalArgumentException("Count must be between 0 and " + session.imageEdit.editCount());
+            }
+            acquireJob();
+            try {
+                for (int i = 0; i < count; i++) {
+                    session.imageEdit.undo();
+                }
+            } finally {
+                releaseJob();
+            }
+            return size(session.imageEdit.imageData);
+        } finally {
+            unlock(session);
+        }
+    }
+
+    /**
+     * This will send the current image of a session, encoded through a temp file so the
+     * format's writer and the metrics work the same as for files on disk
+     */
+    private void download(HttpExchange exchange, String id, OutputFormat format)
+            throws IOException, InterruptedException {
+        File file = File.createTempFile("carving", "." + format.extension());
+        try {
+            Session session = lock(id);
+            try {
+                acquireJob();
+                try {
+                    BufferedImage image = session.imageEdit.imageData.snapshot();
+                    if (image == null) {
+                        throw new IllegalArgumentException("The image is empty");
+                    }
+                    format.write(image, file);
+                } finally {
+                    releaseJob();
+                }
+            } finally {
+                unlock(session);
+            }
+            exchange.getResponseHeaders().set("Content-Type", "image/" + format.extension());
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, file.length());
+            try (OutputStream out = exchange.getResponseBody()) {
+                Files.copy(file.toPath(), out);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * This will close a session and drop its undo history
+     * @return true if there was such a session
+     */
+    boolean close(String id) {
+        Session session = sessions.remove(id);
+        if (session == null) return false;
+        session.lock.lock();
+        try {
+            session.imageEdit.close();
+        } finally {
+            session.lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * This will wait for a session to be free and hold it
+     * @throws NoSuchSessionException if there is no such session, or it was closed while waiting
+     */
+    private Session lock(String id) {
+        Session session = sessions.get(id);
+        if (session == null) throw new NoSuchSessionException(id);
+        session.lock.lock();
+        if (sessions.get(id) != session) {
+            session.lock.unlock();
+            throw new NoSuchSessionException(id);
+        }
+        session.lastUsed = System.nanoTime();
+        return session;
+    }
+
+    /**
+     * This will wait for a free job slot and count the job as running
+     */
+    private void acquireJob() throws InterruptedException {
+        jobs.acquire();
+        peakJobs.accumulateAndGet(running.incrementAndGet(), Math::max);
+    }
+
+    /**
+     * This will count a job as finished and free its slot
+     */
+    private void releaseJob() {
+        running.decrementAndGet();
+        jobs.release();
+    }
+
+    private static void unlock(Session session) {
+        session.lastUsed = System.nanoTime();
+        session.lock.unlock();
+    }
+
+    // Thrown when a request names a session that does not exist
+    private static class NoSuchSessionException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        NoSuchSessionException(String id) {
+            super(id);
+        }
+    }
+
+    private static String size(ImageData imageData) {
+        return imageData.getWidth() + " " + imageData.getHeight();
+    }
+
+    /**
+     * @return the parameters of a query string by name
+     */
+    private static Map<String, String> query(String raw) {
+        Map<String, String> parameters = new HashMap<>();
+        if (raw == null || raw.isEmpty()) return parameters;
+        for (String pair : raw.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    //Main method that serves requests until the JVM is stopped
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int jobs = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long idleSeconds = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_IDLE_SECONDS;
+        // decode uploads in memory instead of through a temp file per image
+        ImageIO.setUseCache(false);
+        Metrics.startFromProperties();
+        CarvingServer server = new CarvingServer(port, jobs, TimeUnit.SECONDS.toMillis(idleSeconds));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            Metrics.stop();
+        }));
+        server.start();
+        System.out.println("Carving images on port " + server.getPort() + " with " + jobs + " jobs at a time");
+    }
+}
@@ -0,0 +1,181 @@
+package uk.ac.nulondon;
+
+import java.util.Arrays;
+
+/**
+ * The ColumnStats class keeps the sum of each color channel down every column of a PixelStore.
+ * It is built once from the whole image and then follows every edit of the store: a recolored
+ * pixel or a horizontal seam only changes the sums of its own columns, and a vertical seam only
+ * changes the sums between its leftmost and rightmost column, the columns past it just move over
+ * by one. Removing or inserting a straight column therefore costs one shift of the sums, and the
+ * bluest column is found in a single pass over them.
+ */
+class ColumnStats {
+    // the channels, in the order their sums are kept
+    static final int RED = 0;
+    static final int GREEN = 1;
+    static final int BLUE = 2;
+
+    private final PixelStore store;
+    // sum of each channel in each column, indexed by channel then column
+    private long[][] sums = new long[3][];
+    private int width;
+
+    /**
+     * Constructor that sums every column of a store
+     * @param store the image to follow
+     */
+    ColumnStats(PixelStore store) {
+        this.store = store;
+        width = store.getWidth();
+        for (int channel = 0; channel < 3; channel++) {
+            sums[channel] = new long[Math.max(width, 1)];
+        }
+        recompute(0, width);
+    }
+
+    private ColumnStats(PixelStore store, ColumnStats other) {
+        this.store = store;
+        width = other.width;
+        for (int channel = 0; channel < 3; channel++) {
+            sums[channel] = other.sums[channel].clone();
+        }
+    }
+
+    /**
+     * @param copy the copy of the image these sums should follow
+     * @return the same sums, following another store
+     */
+    ColumnStats copy(PixelStore copy) {
+        return new ColumnStats(copy, this);
+    }
+
+    /**
+     * @param channel RED, GREEN or BLUE
+     * @param col the column
+     * @return the sum of the channel down the column
+     */
+    long sum(int channel, int col) {
+        return sums[channel][col];
+    }
+
+    /**
+     * @param channel RED, GREEN or BLUE
+     * @param col the column
+     * @return the mean of the channel down the column
+     */
+    double mean(int channel, int col) {
+        return store.getHeight() == 0 ? 0 : (double) sums[channel][col] / store.getHeight();
+    }
+
+    /**
+     * @param channel RED, GREEN or BLUE
+     * @return the column with the greatest sum of the channel, the leftmost one on ties
+     */
+    int best(int channel) {
+        long[] values = sums[channel];
+        int best = 0;
+        for (int col = 1; col < width; col++) {
+            if (values[col] > values[best]) {
+                best = col;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * This will follow one pixel changing color
+     * @param col the column of the pixel
+     * @param before the old packed color
+     * @param after the new packed color
+     */
+    void recolor(int col, int before, int after) {
+        add(col, after, 1);
+        add(col, before, -1);
+    }
+
+    /**
+     * This will follow a vertical seam being removed, once the store has closed the gap
+     * @param columns the column removed in each row
+     */
+    void removeSeam(int[] columns) {
+        int lo = min(columns);
+        int hi = max(columns);
+        for (long[] values : sums) {
+            System.arraycopy(values, hi + 1, values, hi, width - hi - 1);
+        }
+        width--;
+        recompute(lo, hi);
+    }
+
+    /**
+     * This will follow a vertical seam being inserted, once the store has made room for it
+     * @param columns the column inserted in each row
+     */
+    void insertSeam(int[] columns) {
+        int lo = min(columns);
+        int hi = max(columns);
+        if (width + 1 > sums[0].length) {
+            for (int channel = 0; channel < 3; channel++) {
+                sums[channel] = Arrays.copyOf(sums[channel], width + 1 + width / 2);
+            }
+        }
+        for (long[] values : sums) {
+            System.arraycopy(values, lo, values, lo + 1, width - lo);
+        }
+        width++;
+        recompute(lo, hi + 1);
+    }
+
+    /**
+     * This will follow a horizontal seam being removed or inserted
+     * @param colors the packed color of the seam in each column
+     * @param sign -1 if the seam was removed, 1 if it was inserted
+     */
+    void horizontalSeam(int[] colors, int sign) {
+        for (int col = 0; col < colors.length; col++) {
+            add(col, colors[col], sign);
+        }
+    }
+
+    /**
+     * This will add or take away one color from the sums of a column
+     */
+    private void add(int col, int color, int sign) {
+        sums[RED][col] += sign * PixelStore.red(color);
+        sums[GREEN][col] += sign * PixelStore.green(color);
+        sums[BLUE][col] += sign * PixelStore.blue(color);
+    }
+
+    /**
+     * This will sum a range of columns again from the store
+     * @param from the first column to sum
+     * @param to one past the last column to sum
+     */
+    private void recompute(int from, int to) {
+        for (long[] values : sums) {
+            Arrays.fill(values, from, to, 0);
+        }
+        for (int y = 0; y < store.getHeight(); y++) {
+            for (int col = from; col < to; col++) {
+                add(col, store.getRgb(y, col), 1);
+            }
+        }
+    }
+
+    private static int min(int[] values) {
+        int min = Integer.MAX_VALUE;
+        for (int value : values) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    private static int max(int[] values) {
+        int max = Integer.MIN_VALUE;
+        for (int value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+}
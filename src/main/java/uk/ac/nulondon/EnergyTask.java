@@ -0,0 +1,54 @@
+package uk.ac.nulondon;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The EnergyTask class computes the energy of a stripe of rows of a PixelStore on a ForkJoinPool.
+ * Stripes that are too large are split in half until each one is small enough to run directly.
+ * Every pixel's energy only reads colors, so stripes never write to the same place and the result
+ * is the same as computing the rows one after another. Rows are counted on a SeamTask if there
+ * is one, which stops every stripe at its next row once the task is over.
+ */
+class EnergyTask extends RecursiveAction {
+    // roughly how many pixels a stripe should hold before it stops splitting
+    static final int STRIPE_PIXELS = 32 * 1024;
+    private static final long serialVersionUID = 1L;
+
+    // tasks only ever run on a pool and are never serialized, so the store and task are not kept
+    private final transient PixelStore store;
+    private final int fromRow;
+    private final int toRow;
+    private final int stripeRows;
+    private final transient SeamTask task;
+
+    /**
+     * Constructor that creates a task for every row of a store
+     * @param store the store whose energy is computed
+     * @param task the task to count rows on, or null
+     */
+    EnergyTask(PixelStore store, SeamTask task) {
+        this(store, 0, store.getHeight(), Math.max(1, STRIPE_PIXELS / Math.max(1, store.getWidth())), task);
+    }
+
+    private EnergyTask(PixelStore store, int fromRow, int toRow, int stripeRows, SeamTask task) {
+        this.store = store;
+        this.fromRow = fromRow;
+        this.toRow = toRow;
+        this.stripeRows = stripeRows;
+        this.task = task;
+    }
+
+    @Override
+    protected void compute() {
+        if (toRow - fromRow <= stripeRows) {
+            for (int y = fromRow; y < toRow; y++) {
+                SeamTask.advance(task, 1);
+                store.computeEnergy(y, 0, store.rowWidth(y) - 1);
+            }
+            return;
+        }
+        int middle = (fromRow + toRow) >>> 1;
+        invokeAll(new EnergyTask(store, fromRow, middle, stripeRows, task),
+                new EnergyTask(store, middle, toRow, stripeRows, task));
+    }
+}
@@ -0,0 +1,330 @@
+package uk.ac.nulondon;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The FrameCarver class narrows a video, exported as numbered frames, to the same width.
+ * Consecutive frames look alike, so after a keyframe every seam is only searched inside a band
+ * around the same seam of the previous frame. That is much cheaper than the full program, and
+ * it keeps each seam close to where it was so the carved video does not jitter. Those seams are
+ * all found on the energies of the whole frame, kept apart from each other, and removed from each
+ * row in one pass; where earlier seams fill a band, it is widened until there is a way through.
+ * A keyframe runs the full program one seam at a time: on the first frame, every few frames so
+ * seams do not drift away from the best ones, and whenever the frame size changes.
+ * Frames are decoded ahead on some threads and encoded behind on others, while the seams are
+ * carved in order on the calling thread, since each frame needs the seams of the one before.
+ *
+ * Usage:
+ *   FrameCarver &lt;input directory&gt; &lt;output directory&gt; &lt;width&gt; [band] [keyframe interval] [threads]
+ */
+public class FrameCarver {
+    // File names picked up from an input directory
+    private static final Pattern FRAME_NAME = Pattern.compile(".*\\.(png|jpe?g|bmp)");
+    // how many frames at most go by between two full searches unless told otherwise
+    private static final int DEFAULT_KEYFRAME_INTERVAL = 30;
+
+    private final int targetWidth;
+    private final int keyframeInterval;
+    private final SeamFinder exact = new SeamFinder(false);
+    private final PyramidSeamFinder seeded = new PyramidSeamFinder(false, false, 1, 1);
+    private final int band;
+    // the seams removed from the last frame, in order, which guide the next frame
+    private int[][] previous;
+    private int previousWidth;
+    private int previousHeight;
+    private int sinceKeyframe;
+    // how many frames ran the full program
+    private int keyframes;
+
+    /**
+     * Constructor that sets up a carver for one sequence of frames
+     * @param targetWidth the width every frame is narrowed to
+     * @param band how many pixels either side of the previous frame's seam each seam may move
+     * @param keyframeInterval how many frames at most go by between two full searches
+     */
+    public FrameCarver(int targetWidth, int band, int keyframeInterval) {
+        if (targetWidth < 1 || band < 1 || keyframeInterval < 1) {
+            throw new IllegalArgumentException("The width, band and keyframe interval must be at least 1");
+        }
+        this.targetWidth = targetWidth;
+        this.keyframeInterval = keyframeInterval;
+        this.band = band;
+    }
+
+    /**
+     * This will narrow one frame, the next one of the sequence
+     * @param store the frame, which is carved in place
+     * @return the seams removed, each indexed by row, in the columns of the frame before any was removed
+     */
+    int[][] carve(PixelStore store) {
+        int width = store.getWidth();
+        int count = width - targetWidth;
+        if (count < 0) {
+            throw new IllegalArgumentException("Frames can only be narrowed, this one is " + width + " wide");
+        }
+        boolean keyframe = previous == null || sinceKeyframe >= keyframeInterval
+                || width != previousWidth || store.getHeight() != previousHeight;
+        int[][] seams = keyframe ? null : carveSeeded(store);
+        if (seams == null) {
+            // a seam that found no way past the earlier ones falls back to a keyframe, on an untouched store
+            keyframe = true;
+            seams = carveExact(store, count);
+        }
+        Metrics.seamsRemoved(count);
+        previous = seams;
+        previousWidth = width;
+        previousHeight = store.getHeight();
+        if (keyframe) {
+            keyframes++;
+            sinceKeyframe = 1;
+        } else {
+            sinceKeyframe++;
+        }
+        return seams;
+    }
+
+    /**
+     * This will remove the exact lowest-energy seams one at a time, refreshing the energies around
+     * each one before searching for the next
+     * @return the seams removed, in the columns of the frame before any was removed
+     */
+    private int[][] carveExact(PixelStore store, int count) {
+        int[][] seams = new int[count][];
+        for (int i = 0; i < count; i++) {
+            Metrics.Timer timer = Metrics.start(Metrics.Stage.ENERGY);
+            store.refreshEnergy();
+            Metrics.stop(timer, (long) store.getWidth() * store.getHeight());
+            timer = Metrics.start(Metrics.Stage.SEARCH);
+            seams[i] = exact.find(store, null);
+            Metrics.stop(timer, (long) store.getWidth() * store.getHeight());
+            timer = Metrics.start(Metrics.Stage.DELETE);
+            store.removeSeam(seams[i]);
+            Metrics.stop(timer, seams[i].length);
+        }
+        return originalColumns(seams);
+    }
+
+    /**
+     * This will find every seam inside the band around the same seam of the previous frame, all on
+     * the energies of the whole frame, each one kept off the pixels of the ones before it, and
+     * then remove them all in one pass
+     * @return the seams removed, in the columns of the frame before any was removed, or null with
+     *         the store untouched if a seam found no way through its band
+     */
+    private int[][] carveSeeded(PixelStore store) {
+        int width = store.getWidth();
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.ENERGY);
+        store.refreshEnergy();
+        Metrics.stop(timer, (long) width * store.getHeight());
+
+        timer = Metrics.start(Metrics.Stage.SEARCH);
+        BitSet taken = new BitSet(width * store.getHeight());
+        int[][] seams = new int[previous.length][];
+        for (int i = 0; i < seams.length; i++) {
+            // earlier seams can fill the band where many of them run close together, so the band
+            // is widened until there is a way through
+            for (int wider = band; seams[i] == null && wider < 2 * width; wider *= 2) {
+                seams[i] = seeded.refine(store, previous[i], taken, wider);
+            }
+            if (seams[i] == null) {
+                Metrics.stop(timer, (long) width * store.getHeight());
+                return null;
+            }
+            for (int y = 0; y < seams[i].length; y++) {
+                taken.set(y * width + seams[i][y]);
+            }
+        }
+        Metrics.stop(timer, (long) width * store.getHeight());
+
+        timer = Metrics.start(Metrics.Stage.DELETE);
+        store.removeSeams(seams);
+        Metrics.stop(timer, (long) seams.length * store.getHeight());
+        return seams;
+    }
+
+    /**
+     * This will turn seams removed one after another, each in the columns left by the ones before
+     * it, into the columns they had in the whole frame
+     * @param seams the seams in the order they were removed, each indexed by row
+     * @return the same seams in the columns of the whole frame
+     */
+    static int[][] originalColumns(int[][] seams) {
+        int[][] original = new int[seams.length][];
+        for (int i = 0; i < seams.length; i++) {
+            original[i] = new int[seams[i].length];
+        }
+        int height = seams.length == 0 ? 0 : seams[0].length;
+        // the columns removed so far from the row, in the whole frame, in increasing order
+        int[] removed = new int[seams.length];
+        for (int y = 0; y < height; y++) {
+            for (int i = 0; i < seams.length; i++) {
+                // every column removed at or before this one pushes it one further right
+                int col = seams[i][y];
+                int at = 0;
+                while (at < i && removed[at] <= col) {
+                    col++;
+                    at++;
+                }
+                System.arraycopy(removed, at, removed, at + 1, i - at);
+                removed[at] = col;
+                original[i][y] = col;
+            }
+        }
+        return original;
+    }
+
+    /**
+     * This will forget the seams of the last frame, so the next frame is a keyframe
+     */
+    void reset() {
+        previous = null;
+    }
+
+    /**
+     * This will decode, carve and write every frame, decoding and encoding on other threads
+     * @param frames the frames, in order
+     * @param output the directory to write the frames to, under the same names
+     * @param format how the frames are written
+     * @param threads how many threads decode and encode frames, besides the one carving
+     * @return a one line summary of the throughput
+     */
+    public String run(List<File> frames, File output, OutputFormat format, int threads)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        // encoding is slower than decoding, so it gets the larger half of the threads
+        int decoding = Math.max(1, threads / 2);
+        int encoding = Math.max(1, threads - decoding);
+        ExecutorService decoders = Executors.newFixedThreadPool(decoding);
+        ExecutorService encoders = Executors.newFixedThreadPool(encoding);
+        // frames decoded ahead of the carver and waiting to be encoded are bounded, so memory is too
+        int ahead = 2 * (decoding + encoding);
+        Semaphore writing = new Semaphore(ahead);
+        Deque<Future<PixelStore>> decoded = new ArrayDeque<>();
+        List<Future<Boolean>> written = new ArrayList<>();
+        int failed = 0;
+        long pixels = 0;
+        int next = 0;
+        try {
+            for (File frame : frames) {
+                while (next < frames.size() && decoded.size() < ahead) {
+                    File file = frames.get(next++);
+                    decoded.add(decoders.submit(() -> ImageData.decode(file)));
+                }
+                PixelStore store;
+                try {
+                    store = decoded.poll().get();
+                    pixels += (long) store.getWidth() * store.getHeight();
+                    carve(store);
+                } catch (ExecutionException | RuntimeException e) {
+                    failed++;
+                    reset();
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    System.out.println("ERROR PROCESSING " + frame + ": " + cause.getMessage());
+                    continue;
+                }
+                File target = new File(output, outputName(frame.getName(), format));
+                writing.acquire();
+                written.add(encoders.submit(() -> {
+                    try {
+                        format.write(store.toImage(), target);
+                        return true;
+                    } catch (IOException | RuntimeException e) {
+                        System.out.println("ERROR WRITING " + target + ": " + e.getMessage());
+                        return false;
+                    } finally {
+                        writing.release();
+                    }
+                }));
+            }
+            for (Future<Boolean> result : written) {
+                if (!result.get()) failed++;
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            decoders.shutdownNow();
+            encoders.shutdown();
+            encoders.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        double seconds = (System.nanoTime() - start) / BatchMain.NANOS_PER_SECOND;
+        int done = frames.size() - failed;
+        return String.format(Locale.ROOT, "%d frames (%d failed, %d keyframes) in %.2f s: %.2f frames/s, %.2f MP/s",
+                done, failed, keyframes, seconds, done / seconds, pixels / BatchMain.MEGAPIXEL / seconds);
+    }
+
+    /**
+     * @return how many frames so far ran the full program
+     */
+    int getKeyframes() {
+        return keyframes;
+    }
+
+    /**
+     * This will list the frames in a directory in playing order: shorter names first, so frame9
+     * comes before frame10 even without zero padding, then by name
+     * @param input the directory to read frames from
+     * @return the frames
+     */
+    static List<File> frames(File input) {
+        File[] files = input.listFiles((dir, name) -> FRAME_NAME.matcher(name.toLowerCase(Locale.ROOT)).matches());
+        if (files == null) return new ArrayList<>();
+        Arrays.sort(files, Comparator.comparingInt((File file) -> file.getName().length())
+                .thenComparing(File::getName));
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    /**
+     * @return the name a frame is written under, with the extension of the format
+     */
+    private static String outputName(String name, OutputFormat format) {
+        int dot = name.lastIndexOf('.');
+        return (dot < 0 ? name : name.substring(0, dot)) + "." + format.extension();
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: FrameCarver <input directory> <output directory> <width> [band] "
+                + "[keyframe interval] [threads]");
+    }
+
+    //Main method that narrows every frame of a directory without prompts
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 3) {
+            printUsage();
+            return;
+        }
+        int width = Integer.parseInt(args[2]);
+        int band = args.length > 3 ? Integer.parseInt(args[3]) : PyramidSeamFinder.DEFAULT_BAND;
+        int keyframeInterval = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_KEYFRAME_INTERVAL;
+        int threads = args.length > 5 ? Integer.parseInt(args[5])
+                : Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+        File output = new File(args[1]);
+        if (!output.isDirectory() && !output.mkdirs()) {
+            System.out.println("Cannot create output directory " + output);
+            return;
+        }
+        // decode frames in memory instead of through a temp file per frame
+        ImageIO.setUseCache(false);
+        Metrics.startFromProperties();
+        OutputFormat format = OutputFormat.parse(System.getProperty("output.format", "png:1"));
+        System.out.println(new FrameCarver(width, band, keyframeInterval)
+                .run(frames(new File(args[0])), output, format, threads));
+        Metrics.stop();
+    }
+}
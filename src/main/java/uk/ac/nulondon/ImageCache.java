@@ -0,0 +1,170 @@
+package uk.ac.nulondon;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The ImageCache class keeps decoded images in memory so carving the same file to several sizes
+ * only decodes it once. Images are keyed by their path, size and modification time, so a file
+ * that changes on disk is decoded again. Each caller gets a copy-on-write working copy of the
+ * cached PixelStore, which never changes. The least recently used images are dropped once the
+ * cache holds more than its byte budget, and an image larger than the whole budget is not kept.
+ * Threads asking for the same file at once wait for a single decode.
+ */
+final class ImageCache {
+    // The share of the heap the shared cache takes unless -Dimage.cache says otherwise
+    private static final int DEFAULT_HEAP_SHARE = 8;
+    private static final long MEGABYTE = 1024 * 1024;
+    // The cache shared by every ImageData, sized with -Dimage.cache=<megabytes>, 0 to turn it off
+    private static final ImageCache SHARED = new ImageCache(Long.getLong("image.cache",
+            Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_SHARE / MEGABYTE) * MEGABYTE);
+
+    // What a cached image is looked up by
+    record Key(String path, long size, long modified) {
+    }
+
+    // Decoded images, least recently used first
+    private final LinkedHashMap<Key, PixelStore> images = new LinkedHashMap<>(16, 0.75f, true);
+    // Decodes in progress, so a second caller for the same file waits instead of decoding it again
+    private final Map<Key, CompletableFuture<PixelStore>> loading = new LinkedHashMap<>();
+    private final long budget;
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructor that sets up an empty cache
+     * @param budget how many bytes of decoded images to keep, 0 or less to keep none
+     */
+    ImageCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return the cache shared by the whole process
+     */
+    static ImageCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * This will return the pixels of an image file, decoding it only if it is not cached
+     * @param file the image file
+     * @return a working copy of the pixels that the caller may edit
+     */
+    PixelStore load(File file) throws IOException {
+        if (budget <= 0) return ImageData.decode(file);
+        Key key = new Key(file.getCanonicalPath(), file.length(), file.lastModified());
+        CompletableFuture<PixelStore> pending;
+        boolean decoding = false;
+        synchronized (this) {
+            PixelStore cached = images.get(key);
+            if (cached != null) {
+                hits++;
+                return cached.copyOnWrite();
+            }
+            misses++;
+            pending = loading.get(key);
+            if (pending == null) {
+                pending = new CompletableFuture<>();
+                loading.put(key, pending);
+                decoding = true;
+            }
+        }
+        if (decoding) {
+            try {
+                PixelStore store = ImageData.decode(file);
+                synchronized (this) {
+                    loading.remove(key);
+                    add(key, store);
+                    // the copy is taken under the lock, since copyOnWrite marks the cached store shared
+                    pending.complete(store);
+                    return store.copyOnWrite();
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    loading.remove(key);
+                }
+                pending.completeExceptionally(e);
+                throw e;
+            }
+        }
+        PixelStore store;
+        try {
+            store = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + file + " to be decoded", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) throw cause;
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+        synchronized (this) {
+            return store.copyOnWrite();
+        }
+    }
+
+    /**
+     * This will keep a decoded image, dropping the least recently used ones until it fits
+     */
+    private void add(Key key, PixelStore store) {
+        long size = store.planeBytes();
+        if (size > budget) return;
+        PixelStore old = images.put(key, store);
+        if (old != null) bytes -= old.planeBytes();
+        bytes += size;
+        Iterator<Map.Entry<Key, PixelStore>> oldest = images.entrySet().iterator();
+        while (bytes > budget && oldest.hasNext()) {
+            bytes -= oldest.next().getValue().planeBytes();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * @return how many bytes of decoded images the cache may keep
+     */
+    long budget() {
+        return budget;
+    }
+
+    /**
+     * This will drop every cached image
+     */
+    synchronized void clear() {
+        images.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return how many bytes of decoded images are kept
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return how many images are kept
+     */
+    synchronized int size() {
+        return images.size();
+    }
+
+    /**
+     * @return how many loads were answered from the cache
+     */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return how many loads had to decode or wait for a decode
+     */
+    synchronized long misses() {
+        return misses;
+    }
+}
@@ -1,97 +1,186 @@
 package uk.ac.nulondon;
 
+import org.apache.commons.lang3.tuple.Pair;
+
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class ImageData {
     // ArrayList of pixels to be used to store seams to delete
-    ArrayList<Pixel> pixels = new ArrayList<>();
+    private ArrayList<Pixel> pixels = new ArrayList<>();
+    // Primitive backend holding the image once it is imported or adopted from pixels
+    private PixelStore store;
+    // Seam searches for the lowest-energy and greatest-blue modes, vertical then horizontal,
+    // kept so their buffers are reused
+    private final SeamFinder[] finders = {
+        new SeamFinder(false), new SeamFinder(true), new SeamFinder(false, true), new SeamFinder(true, true)
+    };
+    // Coarse-to-fine searches used instead of the full program when set, indexed like finders
+    private PyramidSeamFinder[] pyramids;
+    // The last seam found in each mode and the generation of the pixels it was found on, indexed
+    // like finders, so asking again for an unchanged image skips the search
+    private final int[][] cachedSeams = new int[4][];
+    private final long[] seamGenerations = new long[4];
+    // Pool used for the energy map and seam search on large images, null to stay on the calling thread
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
 
     /**
-     * @param file will be the filepath to an image that will be converted into a graph
-     *             based on a LinkedList of Lists of Integers. It will throw an exception if
-     *             the filepath does not exist.
+     * @param file will be the filepath to an image that will be converted into a packed
+     *             PixelStore. It will throw an exception if the filepath does not exist.
+     *             A file already decoded by this process is taken from the shared ImageCache.
      */
     public void importImage(String file) throws IOException {
+        importImage(file, true);
+    }
 
-            System.out.println("Importing " + file);
-            BufferedImage image = ImageIO.read(new File(file));
-
-            int width = image.getWidth();
-            int height = image.getHeight();
-            pixels = new ArrayList<>();
-            Pixel previousPixel = null;
-
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    int rgb = image.getRGB(x, y);
-                    int r = (rgb >> 16) & 0xff;
-                    int g = (rgb >> 8) & 0xff;
-                    int b = rgb & 0xff;
-                    Pixel currentPixel = new Pixel(r, g, b);
-
-                    if (x == 0) {
-                        pixels.add(currentPixel);
-                    } else {
-                        previousPixel.setRight(currentPixel);
-                        currentPixel.setLeft(previousPixel);
-                    }
-                    previousPixel = currentPixel;
-                }
+    /**
+     * This will import an image file, going through the shared ImageCache only if asked to
+     * @param file the filepath of the image
+     * @param cached true to take the image from the cache and keep it there, false to just decode it
+     */
+    public void importImage(String file, boolean cached) throws IOException {
+        System.out.println("Importing " + file);
+        pixels = new ArrayList<>();
+        store = cached ? ImageCache.shared().load(new File(file)) : decode(new File(file));
+    }
 
+    /**
+     * This will decode an image file into a packed PixelStore without going through the cache
+     * @param file the image file
+     * @return the decoded pixels
+     */
+    static PixelStore decode(File file) throws IOException {
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.DECODE);
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("No image reader for " + file);
         }
+        PixelStore store = PixelStore.fromImage(image);
+        Metrics.stop(timer, (long) store.getWidth() * store.getHeight());
+        return store;
+    }
 
+    /**
+     * This will decode an image that never touched the disk, such as an upload, into a packed PixelStore
+     * @param input the encoded image, which is read but not closed
+     */
+    public void importImage(InputStream input) throws IOException {
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.DECODE);
+        BufferedImage image = ImageIO.read(input);
+        if (image == null) {
+            throw new IOException("No image reader for the data");
+        }
+        pixels = new ArrayList<>();
+        store = PixelStore.fromImage(image);
+        Metrics.stop(timer, pixelCount());
     }
 
     /**
      * @param file this is the filepath where the altered image will be stored at.
-     *             This method will convert an altered graph to an image and be
+     *             This method will convert the pixel store to an image and be
      *             displayed to the user.
      */
     public void exportImage(String file) {
-        if (pixels == null || pixels.isEmpty()) {
+        exportImage(file, OutputFormat.PNG);
+    }
+
+    /**
+     * This will write the image in a chosen format
+     * @param file the filepath where the image will be stored at
+     * @param format how the image is encoded
+     */
+    public void exportImage(String file, OutputFormat format) {
+        PixelStore data = store();
+        if (data == null || data.getHeight() == 0) {
             System.out.println("No pixel data available to export.");
             return;
         }
         try {
-            BufferedImage image = new BufferedImage(pixels.getFirst().getSizeLink(), pixels.size(), BufferedImage.TYPE_INT_RGB);
-            for (int y = 0; y < pixels.size(); y++) {
-                Pixel currentPixel = pixels.get(y);
-                for (int x = 0; x < pixels.getFirst().getSizeLink(); x++) {
-                    int rgb = (currentPixel.getRed() << 16) | (currentPixel.getGreen() << 8) | currentPixel.getBlue();
-                    image.setRGB(x, y, rgb);
-                    currentPixel = currentPixel.getRight();
-                }
-            }
-            ImageIO.write(image, "png", new File(file));
+            format.write(data.toImage(), new File(file));
         } catch (IOException e) {
             System.out.println("ERROR EXPORTING IMAGE: " + e.getMessage());
         }
     }
 
+    /**
+     * This will copy the current pixels into a new image that later edits do not change
+     * @return the copy, or null if there is no image
+     */
+    public BufferedImage snapshot() {
+        PixelStore data = store();
+        if (data == null || data.getHeight() == 0) return null;
+        return data.toImage();
+    }
+
+    /**
+     * This will return the primitive backend, building it from the pixels list
+     * the first time it is needed if the image was set up as a linked graph
+     * @return the pixel store, or null if there is no image
+     */
+    PixelStore store() {
+        if (store == null && pixels != null && !pixels.isEmpty()) {
+            store = PixelStore.fromPixels(pixels);
+            pixels = new ArrayList<>();
+        }
+        return store;
+    }
+
+    /**
+     * @param store the store to edit from now on, replacing the current image
+     */
+    void setStore(PixelStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @return the first pixel of each row of a linked image not yet moved into a store
+     */
+    List<Pixel> pixels() {
+        return pixels;
+    }
+
+    /**
+     * This will set how many threads compute the energy map and search for seams
+     * @param parallelism the number of worker threads, 1 or less to compute on the calling thread
+     */
+    public void setParallelism(int parallelism) {
+        if (pool != null && pool != ForkJoinPool.commonPool()) {
+            pool.shutdown();
+        }
+        if (parallelism <= 1) {
+            pool = null;
+        } else if (parallelism == ForkJoinPool.getCommonPoolParallelism()) {
+            pool = ForkJoinPool.commonPool();
+        } else {
+            pool = new ForkJoinPool(parallelism);
+        }
+    }
+
+    /**
+     * @return the number of threads computing the energy map and searching for seams
+     */
+    public int getParallelism() {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+
     /**
      * This method will go through each pixel in an image and calculate each pixel's energy
      */
     public void iterateEnergy() {
-        if(pixels == null)
+        if (store() == null) {
             return;
-
-        for (Pixel pix : pixels) {
-            Pixel up = (pixels.indexOf(pix) > 0) ? pixels.get(pixels.indexOf(pix) - 1) : pix;
-            Pixel down = (pixels.indexOf(pix) < pixels.size() - 1) ? pixels.get(pixels.indexOf(pix) + 1) : pix;
-
-            while (pix != null) {
-                pix.setEnergy(calcEnergy(up, pix, down));
-                up = up.getRight();
-                down = down.getRight();
-                pix = pix.getRight();
-            }
         }
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.ENERGY);
+        store.computeEnergy(pool);
+        Metrics.stop(timer, pixelCount());
     }
 
     /**
@@ -99,13 +188,13 @@ public class ImageData {
      * @param pixel given pixel to calculate brightness
      * @return the brightness of that given pixel
      */
-    public int calculateBrightness(Pixel pixel, Pixel backup){
-        if(pixel == null) {
-            int sum = backup.getGreen() + backup.getBlue() +  backup.getRed();
-            return sum /3;
+    public int calculateBrightness(Pixel pixel, Pixel backup) {
+        if (pixel == null) {
+            int sum = backup.getGreen() + backup.getBlue() + backup.getRed();
+            return sum / 3;
         }
-        int sum = pixel.getGreen() + pixel.getBlue() +  pixel.getRed();
-        return sum /3;
+        int sum = pixel.getGreen() + pixel.getBlue() + pixel.getRed();
+        return sum / 3;
     }
 
     /**
@@ -116,21 +205,27 @@ public class ImageData {
      * @return the energy of the middle pixel
      */
     public double calcEnergy(Pixel up, Pixel middle, Pixel down) {
-        int horizontal[] = {0, 0};
-        int vertical[] = {0, 0};
+        int[] horizontal = {0, 0};
+        int[] vertical = {0, 0};
 
-        if(up == null)
+        if (up == null) {
             up = middle;
-        if(down == null)
+        }
+        if (down == null) {
             down = middle;
+        }
 
-        horizontal[0] = calculateBrightness(up.getLeft(),middle) + calculateBrightness(up,middle) * 2 + calculateBrightness(up.getRight(),middle);
-        horizontal[1] = calculateBrightness(down.getLeft(),middle) + calculateBrightness(down,middle) * 2 + calculateBrightness(down.getRight(),middle);
+        horizontal[0] = calculateBrightness(up.getLeft(), middle) + calculateBrightness(up, middle) * 2
+                + calculateBrightness(up.getRight(), middle);
+        horizontal[1] = calculateBrightness(down.getLeft(), middle) + calculateBrightness(down, middle) * 2
+                + calculateBrightness(down.getRight(), middle);
 
-        vertical[0] = calculateBrightness(up.getLeft(),middle) + calculateBrightness(middle.getLeft(),middle) * 2 + calculateBrightness(down.getLeft(),middle);
-        vertical[1] = calculateBrightness(up.getRight(),middle) + calculateBrightness(middle.getRight(),middle) * 2 + calculateBrightness(down.getRight(),middle);
+        vertical[0] = calculateBrightness(up.getLeft(), middle) + calculateBrightness(middle.getLeft(), middle) * 2
+                + calculateBrightness(down.getLeft(), middle);
+        vertical[1] = calculateBrightness(up.getRight(), middle) + calculateBrightness(middle.getRight(), middle) * 2
+                + calculateBrightness(down.getRight(), middle);
 
-        return Math.sqrt(Math.pow((horizontal[1] - horizontal[0]), 2) + Math.pow((vertical[1] - vertical[0]), 2));
+        return Math.sqrt(Math.pow(horizontal[1] - horizontal[0], 2) + Math.pow(vertical[1] - vertical[0], 2));
     }
 
     /**
@@ -150,66 +245,325 @@ public class ImageData {
     /**
      * This will calculate the energies of each pixel then find the seam based on a parameter
      * @param isBlue this will provide instructions for if the lowest energy seam or bluest seam is found
-     * @return returns a list of seams to be deleted
+     * @return returns a list of seams to be deleted, starting from the bottom row
      */
     public List<Pixel> getSeam(boolean isBlue) {
-        int width = pixels.getFirst().getSizeLink();
-        iterateEnergy();
-        if (pixels.isEmpty()) return new ArrayList<>();
-
-        double[] previousValues = new double[width]; // the row above's values
-        double[] currentValues = new double[width];  // current row's values
-        List<List<Pixel>> previousSeams = new ArrayList<>(); // seam values from last iteration
-        List<List<Pixel>> currentSeams = new ArrayList<>(); // seam values with this row's iteration
-        int col = 0;
-        Pixel p = pixels.getFirst();
-        Pixel currentPixel;
-
-        // initializing for first row
-        while (col < pixels.getFirst().getSizeLink()) {
-            previousValues[col] = isBlue ? p.getBlue() : p.getEnergy();
-            previousSeams.add(concat(p, List.of()));
-            p = p.getRight();
-            col++;
-        }
-
-        int anotherWidth = pixels.getFirst().getSizeLink();
-        // compute values and paths for each row
-        for (int row = 1; row < pixels.size(); row++) {
-            currentPixel = pixels.get(row);
-            int index = 0;
-
-            while (index < anotherWidth) {
-                double bestSoFar = previousValues[index];
-                int ref = index;
-
-                if (index > 0 && previousValues[index - 1] > bestSoFar && isBlue) {
-                    bestSoFar = previousValues[index - 1];
-                    ref = index - 1;
-                } else if (index > 0 && previousValues[index - 1] < bestSoFar && !isBlue) {
-                    bestSoFar = previousValues[index - 1];
-                    ref = index - 1;
-                }
-                if (index < anotherWidth - 1  && previousValues[index + 1] > bestSoFar && isBlue) {
-                    bestSoFar = previousValues[index + 1];
-                    ref = index + 1;
-                } else if (index < anotherWidth - 1  && previousValues[index + 1] < bestSoFar && !isBlue) {
-                    bestSoFar = previousValues[index + 1];
-                    ref = index + 1;
+        return getSeam(isBlue, null);
+    }
+
+    /**
+     * This will find a seam like getSeam, counting the rows of the energy pass and the program on a task
+     * @param isBlue this will provide instructions for if the lowest energy seam or bluest seam is found
+     * @param task the task to count rows on, or null
+     * @return returns a list of seams to be deleted, starting from the bottom row
+     * @throws java.util.concurrent.CancellationException if the task is over before the seam is found
+     */
+    List<Pixel> getSeam(boolean isBlue, SeamTask task) {
+        List<Pixel> seam = new ArrayList<>();
+        if (store() == null || store.getHeight() == 0) return seam;
+
+        int[] columns = findSeam(isBlue, false, task);
+        for (int row = columns.length - 1; row >= 0; row--) {
+            seam.add(new PixelView(store, row, columns[row]));
+        }
+        return seam;
+    }
+
+    /**
+     * This will find the straight column with the most blue from per-column sums kept up to date
+     * with every edit, without computing energies or running the seam program
+     * @return the index of the column, the leftmost one on ties, or -1 if there is no image
+     */
+    public int bluestColumn() {
+        if (store() == null || store.getWidth() == 0 || store.getHeight() == 0) return -1;
+        return store.columnStats().best(ColumnStats.BLUE);
+    }
+
+    /**
+     * This will return a straight column as a seam
+     * @param col the column
+     * @return returns a list of pixels of the column, starting from the bottom row like getSeam
+     */
+    public List<Pixel> getColumn(int col) {
+        List<Pixel> seam = new ArrayList<>();
+        if (store() == null || col < 0 || col >= store.getWidth()) return seam;
+        for (int row = store.getHeight() - 1; row >= 0; row--) {
+            seam.add(new PixelView(store, row, col));
+        }
+        return seam;
+    }
+
+    /**
+     * This will find a horizontal seam, one pixel in each column, based on a parameter
+     * @param isBlue this will provide instructions for if the lowest energy seam or bluest seam is found
+     * @return returns a list of pixels to be deleted, starting from the leftmost column
+     */
+    public List<Pixel> getHorizontalSeam(boolean isBlue) {
+        List<Pixel> seam = new ArrayList<>();
+        if (store() == null || store.getHeight() == 0) return seam;
+
+        int[] rows = findSeam(isBlue, true);
+        for (int col = 0; col < rows.length; col++) {
+            seam.add(new PixelView(store, rows[col], col));
+        }
+        return seam;
+    }
+
+    /**
+     * This will bring the energies up to date then find the seam on the packed arrays.
+     * Only the pixels next to seams removed or restored since the last call are recomputed,
+     * and large images split the seam search across the same pool as the energy map.
+     * @param isBlue this will provide instructions for if the lowest energy seam or bluest seam is found
+     * @return the column of the seam in each row, indexed by row, empty if there is no image
+     */
+    public int[] findSeam(boolean isBlue) {
+        return findSeam(isBlue, false);
+    }
+
+    /**
+     * This will bring the energies up to date then find a vertical or horizontal seam.
+     * Horizontal seams are searched on a transposed view of the same arrays. Blue seams never
+     * read the energies, so they are not brought up to date for them.
+     * @param isBlue this will provide instructions for if the lowest energy seam or bluest seam is found
+     * @param horizontal true for a seam with one pixel per column
+     * @return the column of the seam in each row, or the row of the seam in each column if horizontal,
+     *         empty if there is no image
+     */
+    public int[] findSeam(boolean isBlue, boolean horizontal) {
+        return findSeam(isBlue, horizontal, null);
+    }
+
+    /**
+     * This will find a seam like findSeam, counting rows on a task between the rows of the energy
+     * pass and of the program. The pyramid search is fast enough to only be checked once it is done.
+     * @param task the task to count rows on, or null
+     * @throws java.util.concurrent.CancellationException if the task is over before the seam is found
+     */
+    int[] findSeam(boolean isBlue, boolean horizontal, SeamTask task) {
+        if (store() == null || store.getWidth() == 0 || store.getHeight() == 0) return new int[0];
+        int mode = (isBlue ? 1 : 0) + (horizontal ? 2 : 0);
+        if (cachedSeams[mode] != null && seamGenerations[mode] == store.getGeneration()) {
+            return cachedSeams[mode].clone();
+        }
+        // blue seams only read colors, so the energy map is left for the next energy seam to refresh
+        if (!isBlue) {
+            Metrics.Timer timer = Metrics.start(Metrics.Stage.ENERGY);
+            store.refreshEnergy(pool, task);
+            Metrics.stop(timer, pixelCount());
+        }
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.SEARCH);
+        int[] seam;
+        if (pyramids != null) {
+            seam = pyramids[mode].find(store);
+            if (task != null) task.expect(seam.length);
+            SeamTask.advance(task, seam.length);
+        } else {
+            seam = finders[mode].find(store, pool, task);
+        }
+        Metrics.stop(timer, pixelCount());
+        cachedSeams[mode] = seam.clone();
+        seamGenerations[mode] = store.getGeneration();
+        return seam;
+    }
+
+    /**
+     * @return the generation of the pixels, which changes with every edit, or -1 if there is no image
+     */
+    long getGeneration() {
+        return store() == null ? -1 : store.getGeneration();
+    }
+
+    /**
+     * This will go back to the generation from before edits that were just undone, so seams and
+     * energies computed for that image are used again instead of being searched for from scratch
+     * @param previous the generation returned by getGeneration before the undone edits
+     */
+    void revertGeneration(long previous) {
+        if (store() != null) store.revertGeneration(previous);
+    }
+
+    /**
+     * This will drop the last seam found in each mode, so the next search runs even if the image
+     * has not changed
+     */
+    void forgetSeams() {
+        Arrays.fill(cachedSeams, null);
+    }
+
+    /**
+     * This will switch seam searches to a coarse-to-fine pyramid, or back to the exact program.
+     * Each level halves the image; finer levels only search a band around the coarser seam, so
+     * large images are much faster to search but may get a slightly worse seam.
+     * @param levels how many times to halve the image at most, 0 for the exact search
+     * @param band how many pixels either side of the projected seam each finer level searches
+     */
+    public void setPyramid(int levels, int band) {
+        forgetSeams();
+        if (levels <= 0) {
+            pyramids = null;
+            return;
+        }
+        pyramids = new PyramidSeamFinder[] {
+            new PyramidSeamFinder(false, false, levels, band), new PyramidSeamFinder(true, false, levels, band),
+            new PyramidSeamFinder(false, true, levels, band), new PyramidSeamFinder(true, true, levels, band)
+        };
+    }
+
+    /**
+     * This will measure how far the pyramid search drifts from the exact seam on the current image
+     * @param isBlue this will provide instructions for if the lowest energy seam or bluest seam is found
+     * @param horizontal true for a seam with one pixel per column
+     * @return the mean distance in pixels between the two seams, and how much worse the pyramid
+     *         seam's total is as a fraction of the exact seam's, 0 when the pyramid is off
+     */
+    public Pair<Double, Double> seamDrift(boolean isBlue, boolean horizontal) {
+        int mode = (isBlue ? 1 : 0) + (horizontal ? 2 : 0);
+        if (pyramids == null || store() == null || store.getWidth() == 0 || store.getHeight() == 0) {
+            return Pair.of(0.0, 0.0);
+        }
+        store.refreshEnergy(pool);
+        int[] exact = finders[mode].find(store, pool);
+        int[] approximate = pyramids[mode].find(store);
+        double distance = 0;
+        for (int i = 0; i < exact.length; i++) {
+            distance += Math.abs(exact[i] - approximate[i]);
+        }
+        double exactCost = pyramids[mode].cost(store, exact);
+        double extra = Math.abs(pyramids[mode].cost(store, approximate) - exactCost);
+        return Pair.of(distance / exact.length, exactCost == 0 ? extra : extra / Math.abs(exactCost));
+    }
+
+    /**
+     * This will remove several lowest-energy vertical seams in a row without highlighting them.
+     * The energy map is only refreshed around each removed seam and the seam search buffers
+     * are reused, so each seam costs one search plus the energy of its neighbors.
+     * @param count how many seams to remove
+     * @return each removed seam as its columns and its packed colors, both indexed by row,
+     *         in the order they were removed
+     */
+    public List<Pair<int[], int[]>> carveColumns(int count) {
+        return carve(count, false);
+    }
+
+    /**
+     * This will remove several lowest-energy horizontal seams in a row without highlighting them
+     * @param count how many seams to remove
+     * @return each removed seam as its rows and its packed colors, both indexed by column,
+     *         in the order they were removed
+     */
+    public List<Pair<int[], int[]>> carveRows(int count) {
+        return carve(count, true);
+    }
+
+    private List<Pair<int[], int[]>> carve(int count, boolean horizontal) {
+        List<Pair<int[], int[]>> removed = new ArrayList<>();
+        for (int i = 0; i < count && (horizontal ? getHeight() : getWidth()) > 1; i++) {
+            int[] seam = findSeam(false, horizontal);
+            if (seam.length == 0) break;
+            Metrics.Timer timer = Metrics.start(Metrics.Stage.DELETE);
+            removed.add(Pair.of(seam, horizontal ? store.removeHorizontalSeam(seam) : store.removeSeam(seam)));
+            Metrics.stop(timer, seam.length);
+            Metrics.seamsRemoved(1);
+        }
+        return removed;
+    }
+
+    /**
+     * This will put back seams removed by carveColumns, last one first
+     * @param removed the seams returned by carveColumns
+     */
+    public void restoreColumns(List<Pair<int[], int[]>> removed) {
+        if (store() == null) return;
+        for (int i = removed.size() - 1; i >= 0; i--) {
+            store.insertSeam(removed.get(i).getLeft(), removed.get(i).getRight());
+        }
+    }
+
+    /**
+     * This will put back seams removed by carveRows, last one first
+     * @param removed the seams returned by carveRows
+     */
+    public void restoreRows(List<Pair<int[], int[]>> removed) {
+        if (store() == null) return;
+        for (int i = removed.size() - 1; i >= 0; i--) {
+            store.insertHorizontalSeam(removed.get(i).getLeft(), removed.get(i).getRight());
+        }
+    }
+
+    /**
+     * This will widen the image by inserting new pixels beside its lowest-energy seams.
+     * Up to half the width worth of non-overlapping seams is found in one pass of the seam
+     * search, and each gets a new pixel on its right with the average color of the seam pixel
+     * and its right neighbor. Larger enlargements repeat this on the widened image.
+     * @param count how many columns to add
+     * @return each inserted seam as its columns and its packed colors, both indexed by row,
+     *         in the order they were inserted
+     */
+    public List<Pair<int[], int[]>> insertColumns(int count) {
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.INSERT);
+        List<Pair<int[], int[]>> inserted = new ArrayList<>();
+        while (count > 0 && getWidth() > 0 && getHeight() > 0) {
+            store.refreshEnergy(pool);
+            int[][] seams = finders[0].findSeams(store, pool, Math.min(count, Math.max(1, getWidth() / 2)));
+            int width = store.getWidth();
+            int[][] positions = insertionPositions(seams, width);
+            int[][] colors = new int[seams.length][store.getHeight()];
+            for (int j = 0; j < seams.length; j++) {
+                for (int y = 0; y < store.getHeight(); y++) {
+                    int col = seams[j][y];
+                    int right = Math.min(col + 1, width - 1);
+                    colors[j][y] = PixelStore.average(store.getRgb(y, col), store.getRgb(y, right));
                 }
+            }
+            store.ensureCapacity(width + seams.length);
+            for (int j = 0; j < seams.length; j++) {
+                store.insertSeam(positions[j], colors[j]);
+                inserted.add(Pair.of(positions[j], colors[j]));
+            }
+            count -= seams.length;
+        }
+        Metrics.stop(timer, (long) inserted.size() * getHeight());
+        return inserted;
+    }
 
-                currentValues[index] = bestSoFar + (isBlue ? currentPixel.getBlue() : currentPixel.getEnergy());
-                currentSeams.add(concat(currentPixel, previousSeams.get(ref)));
-                index++;
-                currentPixel = currentPixel.getRight();
+    /**
+     * This will work out where each new pixel goes when seams are inserted one after another.
+     * A new pixel goes right of its seam pixel, which has moved right once for every earlier
+     * seam to its left in that row; a Fenwick tree per row counts those.
+     * @param seams the seams to insert beside, each indexed by row, in insertion order
+     * @param width the width of the image before any insertion
+     * @return the column of each new pixel at the time it is inserted, indexed like seams
+     */
+    private static int[][] insertionPositions(int[][] seams, int width) {
+        int height = seams.length == 0 ? 0 : seams[0].length;
+        int[][] positions = new int[seams.length][height];
+        int[] tree = new int[width + 1];
+        for (int y = 0; y < height; y++) {
+            Arrays.fill(tree, 0);
+            for (int j = 0; j < seams.length; j++) {
+                int col = seams[j][y];
+                int before = 0;
+                for (int i = col; i > 0; i -= i & -i) {
+                    before += tree[i];
+                }
+                positions[j][y] = col + 1 + before;
+                for (int i = col + 1; i <= width; i += i & -i) {
+                    tree[i]++;
+                }
             }
-            previousValues = currentValues;
-            previousSeams = currentSeams;
-            currentValues = new double[anotherWidth];
-            currentSeams = new ArrayList<>();
         }
+        return positions;
+    }
 
-        return previousSeams.get(getMaxOrMinIndex(previousValues, isBlue));
+    /**
+     * This will take out seams added by insertColumns, last one first
+     * @param inserted the seams returned by insertColumns
+     */
+    public void removeInsertedColumns(List<Pair<int[], int[]>> inserted) {
+        if (store() == null) return;
+        for (int i = inserted.size() - 1; i >= 0; i--) {
+            store.removeSeam(inserted.get(i).getLeft());
+        }
     }
 
     /**
@@ -218,21 +572,164 @@ public class ImageData {
      * @param isBlue if it is lowest-energy or greatest-blue
      * @return the index of the lowest/highest value in a row
      */
-        public int getMaxOrMinIndex(double[] array, boolean isBlue) {
-        int maxIndex = 0;
-        for (int i = 0; i < array.length; i++) {
-            if (isBlue) {
-                if (array[i] > array[maxIndex]) { maxIndex = i; }
+    public int getMaxOrMinIndex(double[] array, boolean isBlue) {
+        return SeamFinder.bestIndex(array, array.length, isBlue);
+    }
+
+    /**
+     * This will remove a seam of pixel views from the store, compacting each row in place
+     * @param seam the pixels returned by getSeam
+     * @return the column of the seam in each row
+     */
+    int[] deleteSeam(List<Pixel> seam) {
+        return deleteSeam(seam, false);
+    }
+
+    /**
+     * This will remove a horizontal seam of pixel views from the store, shifting each column up
+     * @param seam the pixels returned by getHorizontalSeam
+     * @return the row of the seam in each column
+     */
+    int[] deleteHorizontalSeam(List<Pixel> seam) {
+        return deleteSeam(seam, true);
+    }
+
+    private int[] deleteSeam(List<Pixel> seam, boolean horizontal) {
+        int[] positions = seamPositions(seam, horizontal);
+        if ((horizontal ? store.getHeight() : store.getWidth()) <= 1) {
+            throw new IllegalStateException("Cannot remove the last " + (horizontal ? "row" : "column"));
+        }
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.DELETE);
+        int[] removed = horizontal ? store.removeHorizontalSeam(positions) : store.removeSeam(positions);
+        for (Pixel p : seam) {
+            PixelView view = (PixelView) p;
+            view.detach(removed[horizontal ? view.getCol() : view.getRow()]);
+        }
+        Metrics.stop(timer, positions.length);
+        Metrics.seamsRemoved(1);
+        return positions;
+    }
+
+    /**
+     * This will put a removed seam of pixel views back into the store
+     * @param seam the pixels previously passed to deleteSeam
+     */
+    void restoreSeam(List<Pixel> seam) {
+        restoreSeam(seam, false);
+    }
+
+    /**
+     * This will put a removed horizontal seam of pixel views back into the store
+     * @param seam the pixels previously passed to deleteHorizontalSeam
+     */
+    void restoreHorizontalSeam(List<Pixel> seam) {
+        restoreSeam(seam, true);
+    }
+
+    private void restoreSeam(List<Pixel> seam, boolean horizontal) {
+        if (seam.isEmpty() || ((PixelView) seam.getFirst()).isAttached()) return;
+        int[] positions = new int[seam.size()];
+        int[] colors = new int[seam.size()];
+        for (Pixel p : seam) {
+            PixelView view = (PixelView) p;
+            int index = horizontal ? view.getCol() : view.getRow();
+            positions[index] = horizontal ? view.getRow() : view.getCol();
+            colors[index] = PixelStore.pack(view.getRed(), view.getGreen(), view.getBlue());
+        }
+        if (horizontal) {
+            store.insertHorizontalSeam(positions, colors);
+        } else {
+            store.insertSeam(positions, colors);
+        }
+        for (Pixel p : seam) {
+            ((PixelView) p).attach();
+        }
+    }
+
+    /**
+     * This will put a removed seam back into the store from its packed positions and colors
+     * @param positions the column of the seam in each row, or the row in each column if horizontal
+     * @param colors the packed color of each pixel, indexed like positions
+     * @param horizontal whether the seam has one pixel per column
+     */
+    void restoreSeam(int[] positions, int[] colors, boolean horizontal) {
+        if (store() == null) return;
+        if (horizontal) {
+            store.insertHorizontalSeam(positions, colors);
+        } else {
+            store.insertSeam(positions, colors);
+        }
+    }
+
+    /**
+     * This will paint a seam that is still in the store with packed colors
+     * @param positions the column of the seam in each row, or the row in each column if horizontal
+     * @param colors the packed color of each pixel, indexed like positions
+     * @param horizontal whether the seam has one pixel per column
+     */
+    void recolorSeam(int[] positions, int[] colors, boolean horizontal) {
+        if (store() == null) return;
+        for (int i = 0; i < positions.length; i++) {
+            if (horizontal) {
+                store.setRgb(positions[i], i, colors[i]);
+            } else {
+                store.setRgb(i, positions[i], colors[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the column of each view in a vertical seam indexed by row, or the row of each view
+     *         in a horizontal seam indexed by column
+     */
+    private int[] seamPositions(List<Pixel> seam, boolean horizontal) {
+        if (store() == null) throw new IllegalStateException("There is no image to remove a seam from");
+        int[] positions = new int[horizontal ? store.getWidth() : store.getHeight()];
+        if (seam.size() != positions.length) {
+            throw new IllegalArgumentException(horizontal ? "Seam must have one pixel per column"
+                    : "Seam must have one pixel per row");
+        }
+        for (Pixel p : seam) {
+            PixelView view = (PixelView) p;
+            if (horizontal) {
+                positions[view.getCol()] = view.getRow();
             } else {
-                if (array[i] < array[maxIndex]) maxIndex = i;
+                positions[view.getRow()] = view.getCol();
             }
         }
-        return maxIndex;
+        return positions;
     }
 
     /**
-     * @return this will return an ArrayList of pixels
+     * @return the number of pixels in the image, for metrics
      */
-    public List<Pixel> getPixels(){ return pixels; }
+    private long pixelCount() {
+        return store == null ? 0 : (long) store.getWidth() * store.getHeight();
     }
 
+    /**
+     * @return the width of the image
+     */
+    public int getWidth() {
+        return store() == null ? 0 : store.getWidth();
+    }
+
+    /**
+     * @return the height of the image
+     */
+    public int getHeight() {
+        return store() == null ? 0 : store.getHeight();
+    }
+
+    /**
+     * @return this will return a list with the first pixel of each row
+     */
+    public List<Pixel> getPixels() {
+        if (store() == null) return pixels;
+        List<Pixel> rows = new ArrayList<>();
+        for (int y = 0; y < store.getHeight(); y++) {
+            rows.add(new PixelView(store, y, 0));
+        }
+        return rows;
+    }
+    }
@@ -3,27 +3,23 @@ package uk.ac.nulondon;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.ArrayList;
-import java.util.EmptyStackException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 public class ImageEdit {
-    // This will store the deleted seam
-    private Stack<Pair<List<Pixel>, List<PColor>>>history = new Stack<>();
-    // Instance of ImageData class
+    // The strongest value of a color channel, used for the red and blue highlights
+    private static final int MAX_CHANNEL = 255;
+    // This will store the highlighted, deleted and carved seams as packed arrays
+    private final UndoJournal history = new UndoJournal(UndoJournal.DEFAULT_BUDGET);
+    // Instance of ImageData class, public so existing callers keep compiling
+    @SuppressWarnings("checkstyle:VisibilityModifier")
     public ImageData imageData;
-
-    // A class for original colors of pixel seam
-    class PColor {
-        int red;
-        int green;
-        int blue;
-        public PColor(int red, int green, int blue) {
-            this.red = red;
-            this.green = green;
-            this.blue = blue;
-        }
-    }
+    // The last seam search started on another thread, which the next one waits for
+    private CompletableFuture<?> searching = CompletableFuture.completedFuture(null);
 
     /**
      * This is a constructor for ImageEdit using ImageData
@@ -37,121 +33,245 @@ public class ImageEdit {
      * @param operation will provide a string to determine what seam will be highlighted
      * @return this will return the list of pixels that are highlighted
      */
-    public List<Pixel> highlightColumn(String operation){
-        switch(operation){
+    public List<Pixel> highlightColumn(String operation) {
+        return highlightColumn(operation, findColumn(operation, null));
+    }
+
+    /**
+     * This will find and highlight a seam like highlightColumn on another thread, so the caller
+     * can give up on it. The search stops at the next row once the returned task is cancelled or
+     * its deadline passes, and nothing is highlighted then. Searches run one after another, and
+     * the image must not be edited in any other way until the task is over.
+     * @param operation will provide a string to determine what seam will be highlighted
+     * @param timeoutMillis how long the search may take from now, 0 or less for no deadline
+     * @return the task, which completes with the highlighted pixels or with a TimeoutException
+     */
+    public SeamTask highlightColumnAsync(String operation, long timeoutMillis) {
+        return highlightColumnAsync(operation, timeoutMillis, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * This will find and highlight a seam like highlightColumnAsync, running the search on an executor
+     * @param operation will provide a string to determine what seam will be highlighted
+     * @param timeoutMillis how long the search may take from now, 0 or less for no deadline
+     * @param executor where the search runs
+     * @return the task, which completes with the highlighted pixels or with a TimeoutException
+     */
+    public SeamTask highlightColumnAsync(String operation, long timeoutMillis, Executor executor) {
+        SeamTask task = new SeamTask();
+        if (timeoutMillis > 0) {
+            task.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        // a cancelled search may still be finishing its row, so the next one starts after it stops
+        searching = searching.handleAsync((ignored, error) -> {
+            try {
+                if (task.isDone()) return null;
+                List<Pixel> seam = findColumn(operation, task);
+                task.finish(() -> highlightColumn(operation, seam));
+            } catch (RuntimeException e) {
+                // a task that is over threw to stop the search, and keeps the result it already has
+                task.completeExceptionally(e);
+            }
+            return null;
+        }, executor).whenComplete((ignored, error) -> {
+            if (error != null) task.completeExceptionally(error);
+        });
+        return task;
+    }
+
+    /**
+     * This is a helper function to find the seam highlightColumn colors
+     * @param operation will provide a string to determine what seam will be found
+     * @param task the task to count rows on, or null
+     * @return this returns the list of pixels of the seam
+     */
+    private List<Pixel> findColumn(String operation, SeamTask task) {
+        switch (operation) {
             case "b":
-                return highlightBlue();
+                return imageData.getSeam(true, task);
+            case "c":
+                return imageData.getColumn(imageData.bluestColumn());
             default:
-                return highlightRed();
+                return imageData.getSeam(false, task);
         }
     }
 
     /**
-     * This is a helper function to highlight the greatest-blue seam
+     * This is a helper function to color a seam found by findColumn, blue for the blue modes and red otherwise
+     * @param operation the operation the seam was found for
+     * @param seam the pixels of the seam
      * @return this returns the list of pixels to be deleted
      */
-    private List<Pixel> highlightBlue() {
-        ArrayList<Pixel> pixels = new ArrayList<>();
-        ArrayList<Pixel> oldPixels = new ArrayList<>();
-        ArrayList<PColor> oldColors = new ArrayList<>();
-        for(Pixel p: imageData.getSeam(true)){
-            oldPixels.add(p);
-            oldColors.add(new PColor(p.getRed(),p.getGreen(),p.getBlue()));
-            p.setPixel(0, 0, 255);
-            pixels.add(p);
+    private List<Pixel> highlightColumn(String operation, List<Pixel> seam) {
+        if ("b".equals(operation) || "c".equals(operation)) {
+            return highlight(seam, 0, 0, MAX_CHANNEL, false);
+        }
+        return highlight(seam, MAX_CHANNEL, 0, 0, false);
+    }
+
+    /**
+     * This is an abstracted method to highlight a row, a horizontal seam with one pixel per column
+     * @param operation will provide a string to determine what seam will be highlighted
+     * @return this will return the list of pixels that are highlighted
+     */
+    public List<Pixel> highlightRow(String operation) {
+        switch (operation) {
+            case "b":
+                return highlight(imageData.getHorizontalSeam(true), 0, 0, MAX_CHANNEL, true);
+            default:
+                return highlight(imageData.getHorizontalSeam(false), MAX_CHANNEL, 0, 0, true);
         }
-        history.push(Pair.of(oldPixels, oldColors));
-        return pixels;
     }
 
     /**
-     * This is a helper function to highlight the lowest-energy seam
+     * This is a helper function to color a seam and remember its original colors
+     * @param seam the pixels of the seam
+     * @param red the red component of the highlight
+     * @param green the green component of the highlight
+     * @param blue the blue component of the highlight
+     * @param horizontal whether the seam has one pixel per column instead of one per row
      * @return this returns the list of pixels to be deleted
      */
-    private List<Pixel> highlightRed() {
+    private List<Pixel> highlight(List<Pixel> seam, int red, int green, int blue, boolean horizontal) {
+        long before = imageData.getGeneration();
         ArrayList<Pixel> pixels = new ArrayList<>();
-        ArrayList<Pixel> oldPixels = new ArrayList<>();
-        ArrayList<PColor> oldColors = new ArrayList<>();
-        for(Pixel p: imageData.getSeam(false)){
-            oldPixels.add(p);
-            oldColors.add(new PColor(p.getRed(),p.getGreen(),p.getBlue()));
-            p.setPixel(255, 0, 0);
+        int[] positions = new int[seam.size()];
+        int[] oldColors = new int[seam.size()];
+        for (Pixel p : seam) {
+            PixelView view = (PixelView) p;
+            int index = horizontal ? view.getCol() : view.getRow();
+            positions[index] = horizontal ? view.getRow() : view.getCol();
+            oldColors[index] = PixelStore.pack(p.getRed(), p.getGreen(), p.getBlue());
+            p.setPixel(red, green, blue);
             pixels.add(p);
         }
-        history.push(Pair.of(oldPixels, oldColors));
+        UndoJournal.Entry entry = UndoJournal.Entry.highlight(positions, oldColors, horizontal);
+        entry.setBefore(before);
+        entry.setAfter(imageData.getGeneration());
+        history.push(entry);
         return pixels;
     }
 
     /**
      * This method will save and delete the list of pixels chosen from highlightColumn
-     * It will remove the references between the pixels in seam to be deleted
+     * It will compact each row of the image to close the gap left by the seam
      * @param pixelsToRemove this is the list of pixels chosen from highlightColumn
      */
     public void deleteColumn(List<Pixel> pixelsToRemove) {
         try {
-            int count = pixelsToRemove.size() - 1;
-            for (Pixel pixel : pixelsToRemove) {
-                if (pixel.getLeft() != null && pixel.getRight() != null) {
-                    pixel.getLeft().setRight(pixel.getRight());
-                    pixel.getRight().setLeft(pixel.getLeft());
-                }
-                if (pixel.getLeft() == null) {
-                    imageData.getPixels().set(count, pixel.getRight());
-                    pixel.getRight().setLeft(null);
-                } else if (pixel.getRight() == null) {
-                    pixel.getLeft().setRight(null);
-                }
-                count--;
-            }
-        }
-        catch (Exception e) {
+            markDeleted(imageData.deleteSeam(pixelsToRemove), false);
+        } catch (Exception e) {
            System.out.println("No more deletes left");
         }
     }
 
     /**
-     * This will add references back with the seam deleted and undo an edit
+     * This method will delete the list of pixels chosen from highlightRow
+     * It will shift each column of the image up to close the gap left by the seam
+     * @param pixelsToRemove this is the list of pixels chosen from highlightRow
      */
-    public void undo(){
+    public void deleteRow(List<Pixel> pixelsToRemove) {
         try {
-            if (history.isEmpty()) {
-            System.out.println("No more undos available");
-            return;
+            markDeleted(imageData.deleteHorizontalSeam(pixelsToRemove), true);
+        } catch (Exception e) {
+           System.out.println("No more deletes left");
         }
+    }
 
-            Pair<List<Pixel>, List<PColor>> lastState = history.pop();
+    /**
+     * This will retarget the image to a size in one step without highlighting any seam.
+     * A smaller width removes lowest-energy vertical seams and a larger one inserts averaged pixels
+     * beside them; a smaller height then removes horizontal seams.
+     * The whole batch is undone by a single call to undo.
+     * @param targetWidth the width the image should end up with, at least 1
+     * @param targetHeight the height the image should end up with, between 1 and the current height
+     */
+    public void carveTo(int targetWidth, int targetHeight) {
+        if (targetWidth < 1) {
+            throw new IllegalArgumentException("Target width must be at least 1");
+        }
+        if (targetHeight < 1 || targetHeight > imageData.getHeight()) {
+            throw new IllegalArgumentException("Target height must be between 1 and " + imageData.getHeight());
+        }
+        if (targetWidth == imageData.getWidth() && targetHeight == imageData.getHeight()) return;
+        long before = imageData.getGeneration();
+        List<Pair<int[], int[]>> inserted = imageData.insertColumns(targetWidth - imageData.getWidth());
+        List<Pair<int[], int[]>> columns = imageData.carveColumns(imageData.getWidth() - targetWidth);
+        List<Pair<int[], int[]>> rows = imageData.carveRows(imageData.getHeight() - targetHeight);
+        UndoJournal.Entry entry = UndoJournal.Entry.carve(inserted, columns, rows);
+        entry.setBefore(before);
+        entry.setAfter(imageData.getGeneration());
+        history.push(entry);
+    }
 
-            List<Pixel> pixels = lastState.getLeft();
-            List<PColor> colors = lastState.getRight();
+    /**
+     * This will remember that the last highlighted seam was deleted, so undo puts it back
+     * @param positions the positions of the deleted seam
+     * @param horizontal whether the seam has one pixel per column
+     */
+    private void markDeleted(int[] positions, boolean horizontal) {
+        UndoJournal.Entry last = history.peek();
+        if (last != null && last.getKind() == (horizontal ? UndoJournal.HIGHLIGHT_HORIZONTAL : UndoJournal.HIGHLIGHT)
+                && Arrays.equals(last.getPositions()[0], positions)) {
+            last.setDeleted(true);
+            last.setAfter(imageData.getGeneration());
+        }
+    }
 
-            ArrayList<Pixel> add = new ArrayList<>();
-            for(int i = 0; i < pixels.size(); i++){
-                add.add(pixels.get(i));
-                add.get(i).setPixel(colors.get(i).red,colors.get(i).green,colors.get(i).blue);
-            }
+    /**
+     * This will restore the original colors of the last seam and put it back if it was deleted,
+     * or undo every seam removed or inserted by the last carveTo
+     */
+    public void undo() {
+        UndoJournal.Entry lastState = history.pop();
+        if (lastState == null) {
+            System.out.println("No more undos available");
+            return;
+        }
 
-            int count = add.size() - 1;
-            for (Pixel p : add) {
-                if (p.getLeft() != null) {
-                    p.getLeft().setRight(p);
-                } else {
-                    imageData.getPixels().set(count, p);
-                }
-
-                if (p.getRight() != null) {
-                    p.getRight().setLeft(p);
-                }
-                count--;
-            }
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.UNDO);
+        long current = imageData.getGeneration();
+        boolean horizontal = lastState.getKind() == UndoJournal.HIGHLIGHT_HORIZONTAL;
+        if (lastState.getKind() == UndoJournal.CARVE) {
+            imageData.restoreRows(lastState.group(2));
+            imageData.restoreColumns(lastState.group(1));
+            imageData.removeInsertedColumns(lastState.group(0));
+        } else if (lastState.isDeleted()) {
+            imageData.restoreSeam(lastState.getPositions()[0], lastState.getColors()[0], horizontal);
+        } else {
+            imageData.recolorSeam(lastState.getPositions()[0], lastState.getColors()[0], horizontal);
+        }
+        // nothing else touched the image since the edit, so it is back exactly as it was before
+        if (current == lastState.getAfter()) {
+            imageData.revertGeneration(lastState.getBefore());
         }
-        catch (EmptyStackException e) {
-            System.out.println("Stack is empty");
+        long pixels = 0;
+        for (int[] positions : lastState.getPositions()) {
+            pixels += positions.length;
         }
+        Metrics.stop(timer, pixels);
+    }
+
+    /**
+     * This will set how much memory the undo history may use before older edits go to a temp file
+     * @param bytes the heap budget for recent edits
+     */
+    public void setUndoMemory(long bytes) {
+        history.setBudget(bytes);
+    }
+
+    /**
+     * This will drop the undo history and delete its temp file
+     */
+    public void close() {
+        history.close();
     }
 
     /**
      * This will return how many edits have been made
      * @return the number of edits
      */
-    public int editCount(){ return history.size(); }
+    public int editCount() {
+        return history.size();
+    }
 }
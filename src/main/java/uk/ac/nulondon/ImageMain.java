@@ -5,7 +5,7 @@ import java.util.InputMismatchException;
 import java.util.List;
 import java.util.Scanner;
 
-public class ImageMain {
+public final class ImageMain {
     // This is an instance of ImageEdit to handle image methods
     private static ImageEdit imageHandler;
     // This will keep track of how many edits have been made
@@ -14,6 +14,13 @@ public class ImageMain {
     private static String choice = "";
     // Initializes the scanner
     private static Scanner in;
+    // Writes intermediate images in the background
+    private static PreviewExporter previews;
+    // Format of the final image, set with -Doutput.format=png|png:<0-9>|bmp|ppm|pam
+    private static OutputFormat outputFormat;
+
+    private ImageMain() {
+    }
 
     /**
      * Print the UI menu options to the user
@@ -21,11 +28,19 @@ public class ImageMain {
     private static void printMenu() {
         System.out.println("Please enter a command");
         System.out.println("b - Remove the bluest column");
+        System.out.println("c - Remove the bluest straight column");
         System.out.println("r - Remove a random column");
         System.out.println("u - Undo previous edit");
         System.out.println("q - Quit");
     }
 
+    /**
+     * @return the file name of the preview for the current edit
+     */
+    private static String previewName() {
+        return "tempIMG_0" + editCount + "." + previews.getFormat().extension();
+    }
+
     /**
      * Perform an operation based on what the user selected
      */
@@ -33,13 +48,14 @@ public class ImageMain {
         String option;
         switch (choice.toLowerCase()) {
             case "b":
-                if(imageHandler.imageData.getPixels().getFirst().getSizeLink() == 0) {
-                System.out.println("Image too small");
-                break;
-            }
+            case "c":
+                if (imageHandler.imageData.getWidth() == 0) {
+                    System.out.println("Image too small");
+                    break;
+                }
                 // highlight and export intermediate image
                 List<Pixel> blueCol = imageHandler.highlightColumn(choice.toLowerCase());
-                imageHandler.imageData.exportImage("tempIMG_0" + editCount + ".png");
+                previews.submit(imageHandler.imageData, previewName());
                 editCount++;
 
                 // ask for confirmation and try to execute
@@ -48,17 +64,18 @@ public class ImageMain {
                 if (option.toUpperCase().equals("Y")) {
 
                     imageHandler.deleteColumn(blueCol);
+                } else {
+                    imageHandler.undo();
                 }
-                else imageHandler.undo();
                 break;
             case "r":
-                if(imageHandler.imageData.getPixels().getFirst().getSizeLink() == 0) {
-                System.out.println("Image too small");
-                break;
-            }
+                if (imageHandler.imageData.getWidth() == 0) {
+                    System.out.println("Image too small");
+                    break;
+                }
                 // highlight and export intermediate image
                 List<Pixel> redCol = imageHandler.highlightColumn("");
-                imageHandler.imageData.exportImage("tempIMG_0" + editCount + ".png");
+                previews.submit(imageHandler.imageData, previewName());
                 editCount++;
 
                 // ask for confirmation and try to execute
@@ -67,15 +84,16 @@ public class ImageMain {
                 if (option.toUpperCase().equals("Y")) {
 
                     imageHandler.deleteColumn(redCol);
+                } else {
+                    imageHandler.undo();
                 }
-                else imageHandler.undo();
                 break;
             case "u":
                 System.out.println("Undo. Continue? (Y/N)");
                 option = getUserInput();
                 if (option.toUpperCase().equals("Y")) {
                     imageHandler.undo();
-                    imageHandler.imageData.exportImage("tempIMG_0" + editCount + ".png");
+                    previews.submit(imageHandler.imageData, previewName());
                     editCount++;
                 }
                 break;
@@ -110,7 +128,7 @@ public class ImageMain {
      * This method will use recursion until a valid file path is found
      * @param filePath this is the user input
      */
-    private static void fileFound(String filePath){
+    private static void fileFound(String filePath) {
         try {
             imageHandler.imageData.importImage(filePath);
         } catch (IOException e) {
@@ -129,6 +147,18 @@ public class ImageMain {
         System.out.println("Welcome! Enter file path");
         String filePath = getUserInput();
         imageHandler = new ImageEdit();
+        // previews are thrown away, so by default they trade file size for a fast deflate
+        previews = new PreviewExporter(OutputFormat.parse(System.getProperty("preview.format", "png:1")));
+        outputFormat = OutputFormat.parse(System.getProperty("output.format", "png"));
+        // -Dseam.pyramid=<levels>,<band> trades exact seams for a faster coarse-to-fine search
+        String pyramid = System.getProperty("seam.pyramid");
+        if (pyramid != null) {
+            String[] parts = pyramid.split(",");
+            imageHandler.imageData.setPyramid(Integer.parseInt(parts[0].trim()),
+                    parts.length > 1 ? Integer.parseInt(parts[1].trim()) : PyramidSeamFinder.DEFAULT_BAND);
+        }
+        // -Dmetrics.log=<seconds> and -Dmetrics.json=<file> report where the time goes
+        Metrics.startFromProperties();
 
         fileFound(filePath);
 
@@ -140,12 +170,15 @@ public class ImageMain {
             choice = getUserInput();
             handleChoice();
 
-            if (choice.equals("q")) {
+            if ("q".equals(choice)) {
                 shouldQuit = true;
             }
         }
-        // After the user exits, export the final image
-        imageHandler.imageData.exportImage("newImg.png");
+        // After the user exits, finish the last preview and export the final image
+        previews.close();
+        imageHandler.imageData.exportImage("newImg." + outputFormat.extension(), outputFormat);
+        imageHandler.close();
+        Metrics.stop();
         in.close();
     }
 }
@@ -0,0 +1,596 @@
+package uk.ac.nulondon;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Vector;
+
+/**
+ * The MappedPixelStore class carves images that do not fit in the heap out of memory-mapped files.
+ * The source is decoded a band of rows at a time with ImageReader source regions and copied into a
+ * file of packed RGB ints, one row after another. The seam search streams over that file from the
+ * top row down, computing energies from a rolling window of three rows of brightness, and writes
+ * its back-pointers to a second mapped file, so the heap only ever holds a few rows. Each file is
+ * mapped in bands and only a few bands of each are mapped at once.
+ * Only vertical seams are supported: a horizontal search would have to walk the file column by column.
+ * Readers that say random access is easy decode each band on their own, so they get small bands.
+ * Other readers, like the PNG and JPEG ones, decode from the start of the image for every band, so
+ * they get bands as large as a quarter of the heap allows, which keeps the number of passes small.
+ * Only BatchMain carves through this store, and only to narrow images; ImageData and ImageEdit
+ * always keep the whole image on the heap.
+ */
+public class MappedPixelStore implements Closeable {
+    // pixels decoded at once while importing from a reader that can go straight to a band
+    static final int DECODE_PIXELS = 4096 * 4096;
+    // how much of the heap a band may take when the reader decodes from the top for every band
+    static final int SEQUENTIAL_HEAP_SHARE = 4;
+    // bytes of a backing file mapped as one band
+    static final int BAND_BYTES = 64 * 1024 * 1024;
+    // how many bands of each backing file are mapped at the same time
+    static final int WINDOW = 4;
+    // channel masks of packed 0xRRGGBB pixels
+    private static final int[] MASKS = {0xff0000, 0xff00, 0xff};
+
+    // space reserved for each row, the width of the source image
+    private final int stride;
+    private final int height;
+    // number of live pixels in every row
+    private int width;
+    // packed RGB values, one row of stride ints after another
+    private final Bands rgb;
+    // back-pointer of each cell, one row of stride bytes after another
+    private final Bands steps;
+
+    /**
+     * Constructor that creates an empty store backed by two temporary files
+     * @param width the number of columns in every row
+     * @param height the number of rows
+     * @param directory where to put the backing files, or null for the default temporary directory
+     * @param bandBytes how many bytes of a backing file are mapped at once
+     * @param window how many bands of each backing file stay mapped
+     */
+    MappedPixelStore(int width, int height, Path directory, int bandBytes, int window) throws IOException {
+        this.stride = width;
+        this.width = width;
+        this.height = height;
+        rgb = new Bands(directory, height, 4L * width, bandBytes, window);
+        Bands pointers;
+        try {
+            pointers = new Bands(directory, height, width, bandBytes, window);
+        } catch (IOException e) {
+            rgb.close();
+            throw e;
+        }
+        steps = pointers;
+    }
+
+    /**
+     * This will decode an image into a new mapped store one band of rows at a time
+     * @param file the filepath of the image
+     * @param directory where to put the backing files, or null for the default temporary directory
+     * @return the store
+     */
+    public static MappedPixelStore importImage(String file, Path directory) throws IOException {
+        return importImage(file, directory, DECODE_PIXELS, sequentialPixels(), BAND_BYTES, WINDOW);
+    }
+
+    /**
+     * @return how many pixels to decode at once from a reader without easy random access, each
+     *         one an int of the decoded band
+     */
+    static long sequentialPixels() {
+        return Math.max(DECODE_PIXELS, Runtime.getRuntime().maxMemory() / SEQUENTIAL_HEAP_SHARE / 4);
+    }
+
+    /**
+     * This will work out how many rows to decode at once
+     * @param randomAccess whether the reader can decode a band without decoding the rows above it
+     * @return the rows of a band, at least 1 and at most the height
+     */
+    static int bandRows(boolean randomAccess, int width, int height, long decodePixels, long sequentialPixels) {
+        long pixels = randomAccess ? decodePixels : sequentialPixels;
+        return (int) Math.max(1, Math.min(height, pixels / width));
+    }
+
+    /**
+     * This will decode an image into a new mapped store with chosen band sizes
+     * @param decodePixels how many pixels to decode at once from a reader with easy random access
+     * @param sequentialPixels how many pixels to decode at once from any other reader
+     */
+    static MappedPixelStore importImage(String file, Path directory, long decodePixels, long sequentialPixels,
+                                        int bandBytes, int window) throws IOException {
+        System.out.println("Importing " + file);
+        try (ImageInputStream in = ImageIO.createImageInputStream(new File(file))) {
+            ImageReader reader = reader(in, file);
+            try {
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                MappedPixelStore store = new MappedPixelStore(width, height, directory, bandBytes, window);
+                try {
+                    int rows = bandRows(reader.isRandomAccessEasy(0), width, height, decodePixels, sequentialPixels);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    int[] row = new int[width];
+                    for (int y = 0; y < height; y += rows) {
+                        int band = Math.min(rows, height - y);
+                        param.setSourceRegion(new Rectangle(0, y, width, band));
+                        // rows are copied straight out of the decoded band, without a PixelStore in between
+                        OutputFormat.RowReader part = OutputFormat.rowReader(reader.read(0, param));
+                        for (int r = 0; r < band; r++) {
+                            part.read(r, row);
+                            // getRGB answers with an opaque alpha byte the store does not keep
+                            for (int x = 0; x < width; x++) {
+                                row[x] &= PixelStore.RGB_MASK;
+                            }
+                            store.rgb.ints(y + r).put(store.rgb.offset(y + r) / 4, row, 0, width);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    store.close();
+                    throw e;
+                }
+                return store;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * This will read the size of an image from its header without decoding any pixels
+     * @param file the filepath of the image
+     * @return the width and height of the image
+     */
+    public static int[] imageSize(String file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new File(file))) {
+            ImageReader reader = reader(in, file);
+            try {
+                return new int[] {reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * @return a reader for the first image of a stream, with metadata ignored
+     */
+    private static ImageReader reader(ImageInputStream in, String file) throws IOException {
+        if (in == null) {
+            throw new IOException("Cannot read " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            throw new IOException("No image reader for " + file);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, false, true);
+        return reader;
+    }
+
+    /**
+     * @return the width of the image
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the image
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * This will copy the live pixels of a row out of the mapped file
+     * @param row the row to read
+     * @param dst where to put the packed colors, at least the width of the image long
+     */
+    public void readRow(int row, int[] dst) {
+        rgb.ints(row).get(rgb.offset(row) / 4, dst, 0, width);
+    }
+
+    /**
+     * This will find the best vertical seam in one pass over the mapped file.
+     * The energies are computed on the way from three rows of brightness, with the same rules and
+     * float rounding as PixelStore, and ties break like SeamFinder, so both find the same seam.
+     * @param isBlue true for the greatest-blue seam, false for the lowest-energy seam
+     * @return the column of the seam in each row, indexed by row
+     */
+    public int[] findSeam(boolean isBlue) {
+        int[][] colors = new int[3][width];
+        int[][] brightness = new int[3][width];
+        byte[] stepRow = new byte[width];
+        double[] previous = new double[width];
+        double[] current = new double[width];
+
+        load(0, colors[0], brightness[0]);
+        for (int row = 0; row < height; row++) {
+            if (row + 1 < height) {
+                load(row + 1, colors[(row + 1) % 3], brightness[(row + 1) % 3]);
+            }
+            int[] up = brightness[Math.max(row - 1, 0) % 3];
+            int[] middle = brightness[row % 3];
+            int[] down = brightness[Math.min(row + 1, height - 1) % 3];
+            int[] color = colors[row % 3];
+            for (int col = 0; col < width; col++) {
+                double value = isBlue ? PixelStore.blue(color[col]) : (float) energy(up, middle, down, col);
+                if (row == 0) {
+                    previous[col] = value;
+                    continue;
+                }
+                double bestSoFar = previous[col];
+                byte step = 0;
+                if (col > 0 && (isBlue ? previous[col - 1] > bestSoFar : previous[col - 1] < bestSoFar)) {
+                    bestSoFar = previous[col - 1];
+                    step = -1;
+                }
+                if (col < width - 1 && (isBlue ? previous[col + 1] > bestSoFar : previous[col + 1] < bestSoFar)) {
+                    bestSoFar = previous[col + 1];
+                    step = 1;
+                }
+                current[col] = bestSoFar + value;
+                stepRow[col] = step;
+            }
+            if (row > 0) {
+                steps.bytes(row).put(steps.offset(row), stepRow, 0, width);
+                double[] values = previous;
+                previous = current;
+                current = values;
+            }
+        }
+
+        int[] seam = new int[height];
+        int col = SeamFinder.bestIndex(previous, width, isBlue);
+        for (int row = height - 1; row >= 0; row--) {
+            seam[row] = col;
+            if (row > 0) {
+                col += steps.bytes(row).get(steps.offset(row) + col);
+            }
+        }
+        return seam;
+    }
+
+    /**
+     * This will read a row's colors and brightness
+     */
+    private void load(int row, int[] colors, int[] brightness) {
+        readRow(row, colors);
+        for (int col = 0; col < width; col++) {
+            int value = colors[col];
+            brightness[col] = (PixelStore.red(value) + PixelStore.green(value) + PixelStore.blue(value)) / 3;
+        }
+    }
+
+    /**
+     * This will calculate the energy of one pixel from the brightness of its row and the rows
+     * around it, which are the row itself at the top and bottom edges
+     */
+    private double energy(int[] up, int[] middle, int[] down, int col) {
+        int center = middle[col];
+        int upLeft = col > 0 ? up[col - 1] : center;
+        int upRight = col < width - 1 ? up[col + 1] : center;
+        int downLeft = col > 0 ? down[col - 1] : center;
+        int downRight = col < width - 1 ? down[col + 1] : center;
+        int left = col > 0 ? middle[col - 1] : center;
+        int right = col < width - 1 ? middle[col + 1] : center;
+
+        int horizontal = downLeft + down[col] * 2 + downRight - (upLeft + up[col] * 2 + upRight);
+        int vertical = upRight + right * 2 + downRight - (upLeft + left * 2 + downLeft);
+        return Math.sqrt((double) horizontal * horizontal + (double) vertical * vertical);
+    }
+
+    /**
+     * This will remove a vertical seam, moving the rest of each row one column left in the file
+     * @param columns the column of the seam in each row
+     * @return the packed color of each removed pixel, indexed by row
+     */
+    public int[] removeSeam(int[] columns) {
+        if (width <= 1) {
+            throw new IllegalStateException("Cannot remove the last column");
+        }
+        int[] removed = new int[height];
+        int[] tail = new int[width];
+        for (int row = 0; row < height; row++) {
+            int col = columns[row];
+            IntBuffer ints = rgb.ints(row);
+            int start = rgb.offset(row) / 4;
+            removed[row] = ints.get(start + col);
+            ints.get(start + col + 1, tail, 0, width - col - 1);
+            ints.put(start + col, tail, 0, width - col - 1);
+        }
+        width--;
+        return removed;
+    }
+
+    /**
+     * This will remove several lowest-energy vertical seams, one pass over the file each
+     * @param count how many seams to remove
+     * @return how many seams were removed, fewer than count if the image got down to one column
+     */
+    public int carveColumns(int count) {
+        int carved = 0;
+        while (carved < count && width > 1) {
+            removeSeam(findSeam(false));
+            carved++;
+        }
+        return carved;
+    }
+
+    /**
+     * This will give a view of the store as an image that reads its rows from the mapped file on
+     * demand, so it can be handed to an image writer without copying it to the heap
+     * @return the image, only valid until the store is changed or closed
+     */
+    public RenderedImage toImage() {
+        return new RowImage();
+    }
+
+    /**
+     * This will write the image in a chosen format. PNG, PPM and PAM stream one row at a time.
+     * @param file the filepath where the image will be stored at
+     * @param format how the image is encoded
+     */
+    public void exportImage(String file, OutputFormat format) {
+        try {
+            format.write(toImage(), new File(file));
+        } catch (IOException e) {
+            System.out.println("ERROR EXPORTING IMAGE: " + e.getMessage());
+        }
+    }
+
+    /**
+     * This will unmap the backing files and delete them
+     */
+    @Override
+    public void close() {
+        rgb.close();
+        steps.close();
+    }
+
+    /**
+     * The Bands class maps a file of fixed-size rows a band of rows at a time.
+     * Only a few bands stay mapped; asking for a row in another band maps it in place of the one
+     * used least recently, and the dropped mapping is released when it is garbage collected.
+     */
+    private static final class Bands implements Closeable {
+        private final FileChannel channel;
+        private final long rowBytes;
+        private final int rows;
+        private final int rowsPerBand;
+        // which band each slot holds, -1 for none, and when it was last used
+        private final int[] band;
+        private final long[] used;
+        private final ByteBuffer[] bytes;
+        private final IntBuffer[] ints;
+        private long clock;
+
+        Bands(Path directory, int rows, long rowBytes, int bandBytes, int window) throws IOException {
+            Path file = directory == null ? Files.createTempFile("seam-store", ".map")
+                    : Files.createTempFile(directory, "seam-store", ".map");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            this.rowBytes = rowBytes;
+            this.rows = rows;
+            rowsPerBand = (int) Math.max(1, Math.min(rows, bandBytes / Math.max(1, rowBytes)));
+            band = new int[window];
+            Arrays.fill(band, -1);
+            used = new long[window];
+            bytes = new ByteBuffer[window];
+            ints = new IntBuffer[window];
+        }
+
+        /**
+         * @return the mapped bytes of the band holding a row
+         */
+        ByteBuffer bytes(int row) {
+            return bytes[slot(row)];
+        }
+
+        /**
+         * @return the mapped band holding a row, as ints
+         */
+        IntBuffer ints(int row) {
+            return ints[slot(row)];
+        }
+
+        /**
+         * @return where a row starts in the bytes of its band
+         */
+        int offset(int row) {
+            return (int) ((row % rowsPerBand) * rowBytes);
+        }
+
+        /**
+         * This will find the slot holding a row's band, mapping it over the least recently used one if needed
+         */
+        private int slot(int row) {
+            int wanted = row / rowsPerBand;
+            int oldest = 0;
+            for (int i = 0; i < band.length; i++) {
+                if (band[i] == wanted) {
+                    used[i] = ++clock;
+                    return i;
+                }
+                if (used[i] < used[oldest]) {
+                    oldest = i;
+                }
+            }
+            long start = (long) wanted * rowsPerBand * rowBytes;
+            long size = Math.min(rowsPerBand, rows - (long) wanted * rowsPerBand) * rowBytes;
+            try {
+                bytes[oldest] = channel.map(FileChannel.MapMode.READ_WRITE, start, size).order(ByteOrder.nativeOrder());
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot map the pixel store", e);
+            }
+            ints[oldest] = bytes[oldest].asIntBuffer();
+            band[oldest] = wanted;
+            used[oldest] = ++clock;
+            return oldest;
+        }
+
+        @Override
+        public void close() {
+            Arrays.fill(bytes, null);
+            Arrays.fill(ints, null);
+            Arrays.fill(band, -1);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("ERROR CLOSING PIXEL STORE: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The RowImage class shows the store as an image made of one-row tiles, read on demand.
+     * The PNG writer asks for one row at a time, so writing it never holds more than a row.
+     */
+    private final class RowImage implements RenderedImage {
+        private final int imageWidth = width;
+        private final ColorModel colorModel = new DirectColorModel(24, MASKS[0], MASKS[1], MASKS[2]);
+        private final SampleModel sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT,
+                imageWidth, 1, MASKS);
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return imageWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return height;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return imageWidth;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return 1;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            return getData(new Rectangle(0, tileY, imageWidth, 1));
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, imageWidth, height));
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            WritableRaster raster = Raster.createPackedRaster(DataBuffer.TYPE_INT, rect.width, rect.height, MASKS,
+                    new Point(rect.x, rect.y));
+            return copyData(raster);
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = Raster.createPackedRaster(DataBuffer.TYPE_INT, imageWidth, height, MASKS, null);
+            }
+            int[] row = new int[imageWidth];
+            int[] part = new int[raster.getWidth()];
+            for (int y = raster.getMinY(); y < raster.getMinY() + raster.getHeight(); y++) {
+                readRow(y, row);
+                System.arraycopy(row, raster.getMinX(), part, 0, part.length);
+                raster.setDataElements(raster.getMinX(), y, part.length, 1, part);
+            }
+            return raster;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package uk.ac.nulondon;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Metrics class records where carving spends its time.
+ * Every stage (decode, energy, seam search, delete, insert, undo, encode) keeps a latency histogram
+ * and a count of the pixels it handled, next to counters for seams removed, bytes written and the
+ * size of the undo journal. Each stage also commits a JDK Flight Recorder event, so a recording
+ * shows the stages of a slow job on its timeline. Reporters print or dump a snapshot on a schedule.
+ * Recording is off until enabled; while off, timing a stage costs one volatile read.
+ */
+public final class Metrics {
+    // The parts of the pipeline that are timed
+    public enum Stage { DECODE, ENERGY, SEARCH, DELETE, INSERT, UNDO, ENCODE }
+
+    // How often reporters run when -Dmetrics.log does not say
+    private static final long DEFAULT_PERIOD_SECONDS = 10;
+    // Latency buckets, one per power of two of nanoseconds a long can hold
+    private static final int BUCKETS = Long.SIZE;
+    // The percentiles a snapshot keeps for each stage
+    private static final double MEDIAN = 0.5;
+    private static final double P99 = 0.99;
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static volatile boolean enabled;
+    private static final Map<Stage, Histogram> STAGES = new EnumMap<>(Stage.class);
+    private static final LongAdder SEAMS_REMOVED = new LongAdder();
+    private static final LongAdder BYTES_WRITTEN = new LongAdder();
+    private static final AtomicLong JOURNAL_ENTRIES = new AtomicLong();
+    private static final AtomicLong JOURNAL_HEAP_BYTES = new AtomicLong();
+    private static final AtomicLong JOURNAL_SPILLED_BYTES = new AtomicLong();
+    private static volatile long startNanos = System.nanoTime();
+    // Reporters started with schedule, run once more by stop
+    private static final List<Reporter> REPORTERS = new ArrayList<>();
+    private static ScheduledExecutorService scheduler;
+
+    static {
+        for (Stage stage : Stage.values()) {
+            STAGES.put(stage, new Histogram());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * This will turn recording on or off
+     * @param on true to record
+     */
+    public static void enable(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * @return true if stages are being recorded
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * This will clear every histogram and counter and restart the clock used for rates
+     */
+    public static void reset() {
+        for (Histogram histogram : STAGES.values()) {
+            histogram.reset();
+        }
+        SEAMS_REMOVED.reset();
+        BYTES_WRITTEN.reset();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * This will start timing a stage
+     * @param stage the stage that is starting
+     * @return the running timer, or null when recording is off
+     */
+    static Timer start(Stage stage) {
+        return enabled ? new Timer(stage) : null;
+    }
+
+    /**
+     * This will finish timing a stage
+     * @param timer the timer returned by start, may be null
+     * @param pixels how many pixels the stage handled
+     */
+    static void stop(Timer timer, long pixels) {
+        if (timer == null) return;
+        long nanos = System.nanoTime() - timer.start;
+        STAGES.get(timer.stage).record(nanos, pixels);
+        timer.event.end();
+        if (timer.event.shouldCommit()) {
+            timer.event.stage = timer.stage.name();
+            timer.event.pixels = pixels;
+            timer.event.commit();
+        }
+    }
+
+    /**
+     * This will count removed seams
+     * @param count how many seams were removed
+     */
+    static void seamsRemoved(long count) {
+        if (enabled) SEAMS_REMOVED.add(count);
+    }
+
+    /**
+     * This will count bytes written to image files
+     * @param bytes how many bytes were written
+     */
+    static void bytesWritten(long bytes) {
+        if (enabled) BYTES_WRITTEN.add(bytes);
+    }
+
+    /**
+     * This will record the latest size of an undo journal
+     * @param entries how many edits it holds
+     * @param heapBytes how many bytes of them are on the heap
+     * @param spilledBytes how many bytes of them are in the spill file
+     */
+    static void undoJournal(int entries, long heapBytes, long spilledBytes) {
+        if (!enabled) return;
+        JOURNAL_ENTRIES.set(entries);
+        JOURNAL_HEAP_BYTES.set(heapBytes);
+        JOURNAL_SPILLED_BYTES.set(spilledBytes);
+    }
+
+    /**
+     * @return a copy of every histogram and counter as they are now
+     */
+    public static Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    /**
+     * This will run a reporter on a daemon thread every period, and once more when stop is called
+     * @param reporter what to do with each snapshot
+     * @param period the time between two reports
+     * @param unit the unit of period
+     */
+    public static synchronized void schedule(Reporter reporter, long period, TimeUnit unit) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        REPORTERS.add(reporter);
+        scheduler.scheduleAtFixedRate(() -> reporter.report(snapshot()), period, period, unit);
+    }
+
+    /**
+     * This will cancel the scheduled reporters after giving each one a last snapshot
+     */
+    public static synchronized void stop() {
+        if (scheduler == null) return;
+        scheduler.shutdownNow();
+        scheduler = null;
+        Snapshot last = snapshot();
+        for (Reporter reporter : REPORTERS) {
+            reporter.report(last);
+        }
+        REPORTERS.clear();
+    }
+
+    /**
+     * This will enable recording and start reporters from system properties:
+     * -Dmetrics.log=seconds prints a log line that often, and -Dmetrics.json=file rewrites a JSON
+     * dump of every snapshot to the file. Nothing happens if neither is set.
+     */
+    public static void startFromProperties() {
+        String log = System.getProperty("metrics.log");
+        String json = System.getProperty("metrics.json");
+        if (log == null && json == null) return;
+        long period = log == null ? DEFAULT_PERIOD_SECONDS : Long.parseLong(log);
+        enable(true);
+        if (log != null) {
+            schedule(logReporter(), period, TimeUnit.SECONDS);
+        }
+        if (json != null) {
+            schedule(jsonReporter(Path.of(json)), period, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return a reporter that prints each snapshot as one line
+     */
+    public static Reporter logReporter() {
+        return snapshot -> System.out.println(snapshot.toLogLine());
+    }
+
+    /**
+     * @param file where to write the dump
+     * @return a reporter that replaces the file with each snapshot as JSON
+     */
+    public static Reporter jsonReporter(Path file) {
+        return snapshot -> {
+            try {
+                Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.writeString(temp, snapshot.toJson());
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.out.println("ERROR WRITING METRICS: " + e.getMessage());
+            }
+        };
+    }
+
+    // Receives snapshots from schedule
+    public interface Reporter {
+        void report(Snapshot snapshot);
+    }
+
+    // A class for a stage being timed
+    static final class Timer {
+        private final Stage stage;
+        private final long start = System.nanoTime();
+        private final StageEvent event = new StageEvent();
+
+        Timer(Stage stage) {
+            this.stage = stage;
+            event.begin();
+        }
+    }
+
+    // The JFR event committed at the end of every timed stage
+    @Name("uk.ac.nulondon.Stage")
+    @Label("Carving Stage")
+    @Category("Image Compression")
+    @Description("One stage of importing, carving or exporting an image")
+    static final class StageEvent extends Event {
+        @Label("Stage")
+        private String stage;
+        @Label("Pixels")
+        private long pixels;
+    }
+
+    /**
+     * The Histogram class counts stage latencies in power-of-two buckets of nanoseconds,
+     * so recording is a few atomic adds and percentiles are exact to within a factor of two.
+     */
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+        private final LongAdder pixels = new LongAdder();
+
+        void record(long nanos, long handled) {
+            buckets.incrementAndGet(BUCKETS - 1 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            pixels.add(handled);
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+            pixels.reset();
+        }
+    }
+
+    /**
+     * The Snapshot class holds the metrics at one moment, for reporters to print.
+     */
+    public static final class Snapshot {
+        // per stage: count, total, p50, p99, max (all nanoseconds but count) and pixels
+        private final Map<Stage, long[]> stages = new EnumMap<>(Stage.class);
+        private final long seamsRemoved = SEAMS_REMOVED.sum();
+        private final long bytesWritten = BYTES_WRITTEN.sum();
+        private final long journalEntries = JOURNAL_ENTRIES.get();
+        private final long journalHeapBytes = JOURNAL_HEAP_BYTES.get();
+        private final long journalSpilledBytes = JOURNAL_SPILLED_BYTES.get();
+        private final double seconds = (System.nanoTime() - startNanos) / NANOS_PER_SECOND;
+
+        Snapshot() {
+            for (Stage stage : Stage.values()) {
+                Histogram histogram = STAGES.get(stage);
+                long[] counts = new long[BUCKETS];
+                long count = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = histogram.buckets.get(i);
+                    count += counts[i];
+                }
+                stages.put(stage, new long[] {count, histogram.totalNanos.sum(), percentile(counts, count, MEDIAN),
+                    percentile(counts, count, P99), histogram.maxNanos.get(), histogram.pixels.sum()});
+            }
+        }
+
+        /**
+         * @return the upper bound of the bucket holding a fraction of the samples
+         */
+        private static long percentile(long[] counts, long count, double fraction) {
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (count > 0 && seen >= Math.ceil(count * fraction)) {
+                    return i >= BUCKETS - 2 ? Long.MAX_VALUE : (2L << i) - 1;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @param stage the stage
+         * @return how many times the stage ran
+         */
+        public long count(Stage stage) {
+            return stages.get(stage)[0];
+        }
+
+        /**
+         * @param stage the stage
+         * @return how many pixels the stage handled in total
+         */
+        public long pixels(Stage stage) {
+            return stages.get(stage)[5];
+        }
+
+        /**
+         * @return how many seams were removed
+         */
+        public long seamsRemoved() {
+            return seamsRemoved;
+        }
+
+        /**
+         * @return how many bytes were written to image files
+         */
+        public long bytesWritten() {
+            return bytesWritten;
+        }
+
+        /**
+         * @return how many edits the last undo journal to change held
+         */
+        public long journalEntries() {
+            return journalEntries;
+        }
+
+        /**
+         * @return the seams removed per second since recording was reset
+         */
+        public double seamsPerSecond() {
+            return seconds > 0 ? seamsRemoved / seconds : 0;
+        }
+
+        /**
+         * @return the snapshot as one line: per stage its count, mean and p99 in milliseconds,
+         *         then the counters
+         */
+        public String toLogLine() {
+            StringBuilder line = new StringBuilder("metrics");
+            for (Map.Entry<Stage, long[]> entry : stages.entrySet()) {
+                long[] values = entry.getValue();
+                if (values[0] == 0) continue;
+                line.append(String.format(Locale.ROOT, " %s=%d/%.2fms/p99<%.2fms", entry.getKey().name().toLowerCase(
+                        Locale.ROOT), values[0], values[1] / NANOS_PER_MILLI / values[0], values[3] / NANOS_PER_MILLI));
+            }
+            line.append(String.format(Locale.ROOT, " seams=%d (%.1f/s) written=%dB undo=%d (%dB heap, %dB disk)",
+                    seamsRemoved, seamsPerSecond(), bytesWritten, journalEntries, journalHeapBytes,
+                    journalSpilledBytes));
+            return line.toString();
+        }
+
+        /**
+         * @return the snapshot as a JSON object
+         */
+        public String toJson() {
+            StringBuilder json = new StringBuilder("{\n  \"stages\": {");
+            String separator = "\n";
+            for (Map.Entry<Stage, long[]> entry : stages.entrySet()) {
+                long[] values = entry.getValue();
+                json.append(separator).append(String.format(Locale.ROOT,
+                        "    \"%s\": {\"count\": %d, \"totalNanos\": %d, \"p50Nanos\": %d, \"p99Nanos\": %d, "
+                                + "\"maxNanos\": %d, \"pixels\": %d}",
+                        entry.getKey().name().toLowerCase(Locale.ROOT), values[0], values[1], values[2], values[3],
+                        values[4], values[5]));
+                separator = ",\n";
+            }
+            json.append(String.format(Locale.ROOT, "\n  },\n  \"seamsRemoved\": %d,\n  \"seamsPerSecond\": %.3f,\n"
+                            + "  \"bytesWritten\": %d,\n  \"undoJournal\": {\"entries\": %d, \"heapBytes\": %d, "
+                            + "\"spilledBytes\": %d},\n  \"seconds\": %.3f\n}\n",
+                    seamsRemoved, seamsPerSecond(), bytesWritten, journalEntries, journalHeapBytes,
+                    journalSpilledBytes, seconds));
+            return json.toString();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package uk.ac.nulondon;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * The OutputFormat class chooses how an image is written to disk.
+ * PNG can be written at any deflate level from 0 (stored, fastest) to 9 (smallest). BMP goes
+ * through ImageIO without any compression, and binary PPM and PAM are written directly from the
+ * packed pixels, which makes them the cheapest choice for previews nobody keeps.
+ */
+public final class OutputFormat {
+    // PNG at the writer's default deflate level, what exportImage has always written
+    public static final OutputFormat PNG = new OutputFormat("png", -1);
+    public static final OutputFormat BMP = new OutputFormat("bmp", -1);
+    public static final OutputFormat PPM = new OutputFormat("ppm", -1);
+    public static final OutputFormat PAM = new OutputFormat("pam", -1);
+    // the strongest deflate level a PNG can be written with
+    private static final int MAX_PNG_LEVEL = 9;
+    // bytes buffered between the Netpbm encoder and its file
+    private static final int NETPBM_BUFFER = 64 * 1024;
+
+    private final String name;
+    // deflate level for PNG, -1 for the default
+    private final int level;
+
+    private OutputFormat(String name, int level) {
+        this.name = name;
+        this.level = level;
+    }
+
+    /**
+     * This will create a PNG format with a fixed deflate level
+     * @param level from 0 for no compression to 9 for the smallest files
+     * @return the format
+     */
+    public static OutputFormat png(int level) {
+        if (level < 0 || level > MAX_PNG_LEVEL) {
+            throw new IllegalArgumentException("PNG compression level must be between 0 and 9: " + level);
+        }
+        return new OutputFormat("png", level);
+    }
+
+    /**
+     * This will read a format from its name, as "png", "png:level", "bmp", "ppm" or "pam"
+     * @param spec the name of the format
+     * @return the format
+     */
+    public static OutputFormat parse(String spec) {
+        String lower = spec.trim().toLowerCase(Locale.ROOT);
+        if (lower.startsWith("png:")) {
+            return png(Integer.parseInt(lower.substring(4)));
+        }
+        switch (lower) {
+            case "png": return PNG;
+            case "bmp": return BMP;
+            case "ppm": return PPM;
+            case "pam": return PAM;
+            default: throw new IllegalArgumentException("Unknown output format: " + spec);
+        }
+    }
+
+    /**
+     * @return the file extension for this format, without the dot
+     */
+    public String extension() {
+        return name;
+    }
+
+    /**
+     * @return the deflate level of a PNG format, or -1 for the default
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * This will write an image to a file in this format. PNG and the Netpbm formats only ask the
+     * image for one row at a time, so an image backed by something other than the heap is
+     * streamed out without being copied whole.
+     * @param image the image to write
+     * @param file where to write it
+     */
+    public void write(RenderedImage image, File file) throws IOException {
+        Metrics.Timer timer = Metrics.start(Metrics.Stage.ENCODE);
+        encode(image, file);
+        Metrics.stop(timer, (long) image.getWidth() * image.getHeight());
+        if (timer != null) {
+            Metrics.bytesWritten(file.length());
+        }
+    }
+
+    /**
+     * This will write an image in this format without timing it
+     */
+    private void encode(RenderedImage image, File file) throws IOException {
+        switch (name) {
+            case "ppm":
+                writeNetpbm(image, file, "P6\n" + image.getWidth() + " " + image.getHeight() + "\n255\n");
+                break;
+            case "pam":
+                writeNetpbm(image, file, "P7\nWIDTH " + image.getWidth() + "\nHEIGHT " + image.getHeight()
+                        + "\nDEPTH 3\nMAXVAL 255\nTUPLTYPE RGB\nENDHDR\n");
+                break;
+            case "png":
+                if (level >= 0) {
+                    writePng(image, file);
+                } else {
+                    writeDefault(image, file);
+                }
+                break;
+            default:
+                writeDefault(image, file);
+        }
+    }
+
+    /**
+     * This will write an image through the ImageIO writer for the format with its default settings
+     */
+    private void writeDefault(RenderedImage image, File file) throws IOException {
+        if (!ImageIO.write(image, name, file)) {
+            throw new IOException("No image writer for " + name);
+        }
+    }
+
+    /**
+     * This will write a PNG through the ImageIO writer with the deflate level set explicitly.
+     * The writer turns a compression quality q into deflate level 9 - round(9 * q).
+     */
+    private void writePng(RenderedImage image, File file) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+        if (!writers.hasNext()) {
+            throw new IOException("No image writer for png");
+        }
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(1f - (float) level / MAX_PNG_LEVEL);
+        // delete first, the stream does not truncate an existing longer file
+        file.delete();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            if (out == null) {
+                throw new IOException("Cannot write " + file);
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * This will write a binary PPM or PAM, a text header followed by the red, green and blue
+     * byte of every pixel in row order
+     */
+    private static void writeNetpbm(RenderedImage image, File file, String header) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        RowReader rows = rowReader(image);
+        int[] row = new int[width];
+        byte[] bytes = new byte[width * 3];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), NETPBM_BUFFER)) {
+            out.write(header.getBytes(StandardCharsets.US_ASCII));
+            for (int y = 0; y < height; y++) {
+                rows.read(y, row);
+                for (int x = 0; x < width; x++) {
+                    int color = row[x];
+                    bytes[x * 3] = (byte) (color >> PixelStore.RED_SHIFT);
+                    bytes[x * 3 + 1] = (byte) (color >> PixelStore.GREEN_SHIFT);
+                    bytes[x * 3 + 2] = (byte) color;
+                }
+                out.write(bytes);
+            }
+        }
+    }
+
+    // Reads one row of an image as packed RGB
+    interface RowReader {
+        void read(int y, int[] row);
+    }
+
+    /**
+     * This will pick the cheapest way to read an image one row at a time: straight from the
+     * backing array of a plain RGB image, through getRGB for any other buffered image, or one
+     * row raster at a time for any other rendered image
+     */
+    static RowReader rowReader(RenderedImage image) {
+        int width = image.getWidth();
+        if (image instanceof BufferedImage buffered) {
+            int[] packed = packedRgb(buffered);
+            if (packed != null) {
+                return (y, row) -> System.arraycopy(packed, y * width, row, 0, width);
+            }
+            return (y, row) -> buffered.getRGB(0, y, width, 1, row, 0, width);
+        }
+        ColorModel colors = image.getColorModel();
+        WritableRaster line = Raster.createWritableRaster(
+                image.getSampleModel().createCompatibleSampleModel(width, 1), null);
+        BufferedImage lineImage = new BufferedImage(colors, line, colors.isAlphaPremultiplied(), null);
+        return (y, row) -> {
+            Raster raster = image.getData(new Rectangle(image.getMinX(), image.getMinY() + y, width, 1));
+            line.setDataElements(0, 0, raster.createTranslatedChild(0, 0));
+            lineImage.getRGB(0, 0, width, 1, row, 0, width);
+        };
+    }
+
+    /**
+     * @return the backing array of an RGB image laid out one row after another with no padding,
+     *         like the ones PixelStore.toImage makes, or null for any other image
+     */
+    private static int[] packedRgb(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB
+                || !(image.getSampleModel() instanceof SinglePixelPackedSampleModel model)
+                || model.getScanlineStride() != image.getWidth()
+                || image.getRaster().getSampleModelTranslateX() != 0
+                || image.getRaster().getSampleModelTranslateY() != 0) {
+            return null;
+        }
+        DataBufferInt buffer = (DataBufferInt) image.getRaster().getDataBuffer();
+        return buffer.getOffset() == 0 ? buffer.getData() : null;
+    }
+
+    @Override
+    public String toString() {
+        return level < 0 ? name : name + ":" + level;
+    }
+}
@@ -5,6 +5,9 @@ package uk.ac.nulondon;
  * The Pixel class represents a pixel with red, green, and blue color values.
  */
 public class Pixel {
+    // The value every channel of a default pixel starts at
+    private static final int MAX_CHANNEL = 255;
+
     // Class fields
     private int r;
     private int g;
@@ -14,12 +17,12 @@ public class Pixel {
     private double energy;
 
     /**
-     * Default constructor that creates a black pixel (all values set to 0).
+     * Default constructor that creates a white pixel (all values set to 255).
      */
-    public Pixel(){
-        r = 255;
-        g = 255;
-        b = 255;
+    public Pixel() {
+        r = MAX_CHANNEL;
+        g = MAX_CHANNEL;
+        b = MAX_CHANNEL;
     }
 
     /**
@@ -29,33 +32,115 @@ public class Pixel {
      * @param green the green component of the pixel
      * @param blue the blue component of the pixel
      */
-    public Pixel(int red, int green, int blue){
+    public Pixel(int red, int green, int blue) {
         setPixel(red, green, blue);
     }
 
 
     // Individual setters and getters for each color, energy, and reference components
-    public void setEnergy(double e){ energy = e; }
-    public double getEnergy(){ return energy; }
-    public void setPixel(int red, int green, int blue){
+
+    /**
+     * @param e the new energy of the pixel
+     */
+    public void setEnergy(double e) {
+        energy = e;
+    }
+
+    /**
+     * @return the last energy set on the pixel
+     */
+    public double getEnergy() {
+        return energy;
+    }
+
+    /**
+     * @param red the new red component
+     * @param green the new green component
+     * @param blue the new blue component
+     */
+    public void setPixel(int red, int green, int blue) {
         r = red;
         g = green;
         b = blue;
     }
-    public void setRed(int red){ r = red; }
-    public void setGreen(int green) { g = green; }
-    public void setBlue(int blue) { b = blue; }
-    public void setLeft(Pixel left){ this.left = left; }
-    public void setRight(Pixel right){ this.right = right; }
-    public int getRed(){ return r; }
-    public int getGreen(){ return g; }
-    public int getBlue(){ return b; }
-    public Pixel getLeft(){ return left; }
-    public Pixel getRight(){ return right; }
-    public int getSizeLink(){
+
+    /**
+     * @param red the new red component
+     */
+    public void setRed(int red) {
+        r = red;
+    }
+
+    /**
+     * @param green the new green component
+     */
+    public void setGreen(int green) {
+        g = green;
+    }
+
+    /**
+     * @param blue the new blue component
+     */
+    public void setBlue(int blue) {
+        b = blue;
+    }
+
+    /**
+     * @param left the pixel to the left of this one
+     */
+    public void setLeft(Pixel left) {
+        this.left = left;
+    }
+
+    /**
+     * @param right the pixel to the right of this one
+     */
+    public void setRight(Pixel right) {
+        this.right = right;
+    }
+
+    /**
+     * @return the red component
+     */
+    public int getRed() {
+        return r;
+    }
+
+    /**
+     * @return the green component
+     */
+    public int getGreen() {
+        return g;
+    }
+
+    /**
+     * @return the blue component
+     */
+    public int getBlue() {
+        return b;
+    }
+
+    /**
+     * @return the pixel to the left of this one, or null at the start of a row
+     */
+    public Pixel getLeft() {
+        return left;
+    }
+
+    /**
+     * @return the pixel to the right of this one, or null at the end of a row
+     */
+    public Pixel getRight() {
+        return right;
+    }
+
+    /**
+     * @return how many pixels there are from this one to the end of its row, itself included
+     */
+    public int getSizeLink() {
         Pixel iter = this;
         int counter = 0;
-        while(iter != null){
+        while (iter != null) {
             counter++;
             iter = iter.getRight();
         }
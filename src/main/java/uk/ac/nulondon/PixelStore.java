@@ -0,0 +1,895 @@
+package uk.ac.nulondon;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The PixelStore class keeps an image in flat primitive arrays instead of a graph of Pixel objects.
+ * Colors are packed as 0xRRGGBB in an int[], energies and brightness live in a parallel float[]
+ * and byte[], and every row
+ * is addressed through its own offset and width so seams can be removed by compacting rows in place.
+ */
+public class PixelStore {
+    // the last generation handed out to any store
+    private static final AtomicLong GENERATIONS = new AtomicLong();
+    // true to compute energies and seams with VectorKernels: the JVM was started with
+    // --add-modules jdk.incubator.vector and -Dseam.vector=false was not given
+    static final boolean VECTOR_KERNELS = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && !"false".equals(System.getProperty("seam.vector"));
+    // how far the red and green channels are shifted up in a packed 0xRRGGBB color
+    static final int RED_SHIFT = 16;
+    static final int GREEN_SHIFT = 8;
+    // the bits of one channel once shifted down
+    static final int CHANNEL_MASK = 0xff;
+    // the bits of a packed color without its alpha
+    static final int RGB_MASK = 0xffffff;
+    // packed RGB values, one row after another
+    private int[] rgb;
+    // energy of each pixel, same layout as rgb
+    private float[] energy;
+    // brightness of each pixel, the average of its channels as an unsigned byte, same layout as rgb.
+    // Every pixel's brightness is read by the energies of its eight neighbors, so it is kept up to date
+    // with the colors instead of being recomputed for each of them
+    private byte[] luma;
+    // index of the first pixel of each row
+    private int[] rowOffset;
+    // number of live pixels in each row
+    private int[] rowWidth;
+    // number of rows in the image
+    private int height;
+    // space reserved for each row
+    private int stride;
+    // first and last column of each row whose energy is out of date, empty when first > last
+    private int[] dirtyLo;
+    private int[] dirtyHi;
+    // false until the energy of every pixel has been computed once
+    private boolean energyValid;
+    // numbers the states of the pixels: every edit moves to a number never used before by any store,
+    // and undoing edits can move back to the number from before them
+    private long generation = GENERATIONS.incrementAndGet();
+    // the generation the whole energy map was last up to date at, -1 once a seam moved it since
+    private long energyGeneration = -1;
+    // sums of each channel down every column, null until columnStats is first called
+    private ColumnStats columnStats;
+    // true while rgb, energy and luma are shared with another store and must be copied before a write
+    private boolean shared;
+
+    /**
+     * Constructor that creates an empty store with room for the given dimensions
+     * @param width the number of columns in every row
+     * @param height the number of rows
+     */
+    public PixelStore(int width, int height) {
+        this.height = height;
+        this.stride = width;
+        rgb = new int[width * height];
+        energy = new float[width * height];
+        luma = new byte[width * height];
+        rowOffset = new int[height];
+        rowWidth = new int[height];
+        dirtyLo = new int[height];
+        dirtyHi = new int[height];
+        for (int y = 0; y < height; y++) {
+            rowOffset[y] = y * stride;
+            rowWidth[y] = width;
+        }
+        clearDirty();
+    }
+
+    /**
+     * This will build a store out of a linked graph of pixels
+     * @param rows the first pixel of each row
+     * @return a store holding the same colors
+     */
+    public static PixelStore fromPixels(List<Pixel> rows) {
+        int width = rows.isEmpty() ? 0 : rows.get(0).getSizeLink();
+        PixelStore store = new PixelStore(width, rows.size());
+        for (int y = 0; y < rows.size(); y++) {
+            Pixel p = rows.get(y);
+            for (int x = 0; x < width && p != null; x++) {
+                store.setRgb(y, x, pack(p.getRed(), p.getGreen(), p.getBlue()));
+                p = p.getRight();
+            }
+        }
+        return store;
+    }
+
+    /**
+     * This will build a store from a decoded image, copying whole rows at a time.
+     * Int-packed and interleaved-byte sRGB rasters are read straight from their data buffers;
+     * any other color model goes through one bulk getRGB call per row so its colors are converted
+     * exactly as getRGB would. Alpha is dropped.
+     * @param image the decoded image
+     * @return a store holding the same colors
+     */
+    public static PixelStore fromImage(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        PixelStore store = new PixelStore(width, height);
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        SampleModel model = raster.getSampleModel();
+        int originX = -raster.getSampleModelTranslateX();
+        int originY = -raster.getSampleModelTranslateY();
+        boolean srgb = image.getColorModel().getColorSpace().isCS_sRGB() && !image.isAlphaPremultiplied();
+
+        if (srgb && buffer instanceof DataBufferInt ints && model instanceof SinglePixelPackedSampleModel packed
+                && (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)) {
+            int[] data = ints.getData();
+            int scanline = packed.getScanlineStride();
+            int start = ints.getOffset() + packed.getOffset(originX, originY);
+            for (int y = 0; y < height; y++) {
+                int from = start + y * scanline;
+                int to = store.rowOffset[y];
+                for (int x = 0; x < width; x++) {
+                    store.rgb[to + x] = data[from + x] & RGB_MASK;
+                }
+            }
+        } else if (srgb && buffer instanceof DataBufferByte bytes && model instanceof ComponentSampleModel component
+                && component.getNumBands() >= 3 && buffer.getNumBanks() == 1) {
+            byte[] data = bytes.getData();
+            int pixelStride = component.getPixelStride();
+            int scanline = component.getScanlineStride();
+            int[] bands = component.getBandOffsets();
+            int start = bytes.getOffset() + originY * scanline + originX * pixelStride;
+            for (int y = 0; y < height; y++) {
+                int from = start + y * scanline;
+                int to = store.rowOffset[y];
+                for (int x = 0; x < width; x++, from += pixelStride) {
+                    store.rgb[to + x] = pack(data[from + bands[0]] & CHANNEL_MASK, data[from + bands[1]] & CHANNEL_MASK,
+                            data[from + bands[2]] & CHANNEL_MASK);
+                }
+            }
+        } else {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                int to = store.rowOffset[y];
+                for (int x = 0; x < width; x++) {
+                    store.rgb[to + x] = row[x] & RGB_MASK;
+                }
+            }
+        }
+        store.fillBrightness();
+        return store;
+    }
+
+    /**
+     * This will build an RGB image of the store, copying each row straight into its data buffer
+     * @return a new image with the same colors
+     */
+    public BufferedImage toImage() {
+        int width = getWidth();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(rgb, rowOffset[y], data, y * width, width);
+        }
+        return image;
+    }
+
+    /**
+     * This will make an independent copy of the store, including its energies and dirty bands
+     * @return a store with the same contents that can be changed without affecting this one
+     */
+    public PixelStore copy() {
+        PixelStore copy = new PixelStore(0, 0);
+        copy.rgb = rgb.clone();
+        copy.energy = energy.clone();
+        copy.luma = luma.clone();
+        copy.rowOffset = rowOffset.clone();
+        copy.rowWidth = rowWidth.clone();
+        copy.dirtyLo = dirtyLo.clone();
+        copy.dirtyHi = dirtyHi.clone();
+        copy.height = height;
+        copy.stride = stride;
+        copy.energyValid = energyValid;
+        copy.generation = generation;
+        copy.energyGeneration = energyGeneration;
+        copy.columnStats = columnStats == null ? null : columnStats.copy(copy);
+        return copy;
+    }
+
+    /**
+     * This will make a copy that shares the colors, energies and brightness with this store until
+     * either of them first writes to them, so a copy that is only read costs nothing but its rows
+     * @return the copy
+     */
+    public PixelStore copyOnWrite() {
+        PixelStore copy = new PixelStore(0, 0);
+        copy.rgb = rgb;
+        copy.energy = energy;
+        copy.luma = luma;
+        copy.rowOffset = rowOffset.clone();
+        copy.rowWidth = rowWidth.clone();
+        copy.dirtyLo = dirtyLo.clone();
+        copy.dirtyHi = dirtyHi.clone();
+        copy.height = height;
+        copy.stride = stride;
+        copy.energyValid = energyValid;
+        copy.generation = generation;
+        copy.energyGeneration = energyGeneration;
+        copy.columnStats = columnStats == null ? null : columnStats.copy(copy);
+        copy.shared = true;
+        shared = true;
+        return copy;
+    }
+
+    /**
+     * This will take a private copy of the colors, energies and brightness if they are shared
+     * with another store, before they are written to
+     */
+    private void own() {
+        if (!shared) return;
+        rgb = rgb.clone();
+        energy = energy.clone();
+        luma = luma.clone();
+        shared = false;
+    }
+
+    /**
+     * @return the bytes held by the colors, energies and brightness of the store
+     */
+    long planeBytes() {
+        return (long) rgb.length * Integer.BYTES + (long) energy.length * Float.BYTES + luma.length;
+    }
+
+    /**
+     * This will make sure every row has room for a given number of pixels, moving the rows
+     * further apart if needed so seams can be inserted
+     * @param width the number of pixels each row must be able to hold
+     */
+    public void ensureCapacity(int width) {
+        if (width <= stride) return;
+        int newStride = Math.max(width, stride + stride / 2);
+        int rows = rowOffset.length;
+        int[] newRgb = new int[newStride * rows];
+        float[] newEnergy = new float[newStride * rows];
+        byte[] newLuma = new byte[newStride * rows];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(rgb, rowOffset[y], newRgb, y * newStride, rowWidth[y]);
+            System.arraycopy(energy, rowOffset[y], newEnergy, y * newStride, rowWidth[y]);
+            System.arraycopy(luma, rowOffset[y], newLuma, y * newStride, rowWidth[y]);
+        }
+        for (int y = 0; y < rows; y++) {
+            rowOffset[y] = y * newStride;
+        }
+        rgb = newRgb;
+        energy = newEnergy;
+        luma = newLuma;
+        stride = newStride;
+        shared = false;
+    }
+
+    /**
+     * This will average two packed colors channel by channel
+     * @param first the first packed color
+     * @param second the second packed color
+     * @return the packed average
+     */
+    public static int average(int first, int second) {
+        return pack((red(first) + red(second)) / 2, (green(first) + green(second)) / 2,
+                (blue(first) + blue(second)) / 2);
+    }
+
+    /**
+     * This will pack three color components into a single int
+     * @param red the red component
+     * @param green the green component
+     * @param blue the blue component
+     * @return the packed 0xRRGGBB value
+     */
+    public static int pack(int red, int green, int blue) {
+        return (red << RED_SHIFT) | (green << GREEN_SHIFT) | blue;
+    }
+
+    /**
+     * @param value a packed color
+     * @return its red component
+     */
+    static int red(int value) {
+        return (value >> RED_SHIFT) & CHANNEL_MASK;
+    }
+
+    /**
+     * @param value a packed color
+     * @return its green component
+     */
+    static int green(int value) {
+        return (value >> GREEN_SHIFT) & CHANNEL_MASK;
+    }
+
+    /**
+     * @param value a packed color
+     * @return its blue component
+     */
+    static int blue(int value) {
+        return value & CHANNEL_MASK;
+    }
+
+    /**
+     * @return the width of the image, taken from the first row
+     */
+    public int getWidth() {
+        return height == 0 ? 0 : rowWidth[0];
+    }
+
+    /**
+     * @return the number of rows in the image
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param row the row of the pixel
+     * @param col the column of the pixel
+     * @return the packed color of the pixel
+     */
+    public int getRgb(int row, int col) {
+        return rgb[rowOffset[row] + col];
+    }
+
+    /**
+     * @param row the row of the pixel
+     * @param col the column of the pixel
+     * @param value the new packed color of the pixel
+     */
+    public void setRgb(int row, int col, int value) {
+        own();
+        if (columnStats != null) {
+            columnStats.recolor(col, rgb[rowOffset[row] + col], value);
+        }
+        rgb[rowOffset[row] + col] = value;
+        luma[rowOffset[row] + col] = brightnessOf(value);
+        for (int y = row - 1; y <= row + 1; y++) {
+            markDirty(y, col - 1, col + 1);
+        }
+        generation = GENERATIONS.incrementAndGet();
+    }
+
+    /**
+     * @param row the row of the pixel
+     * @param col the column of the pixel
+     * @return the last computed energy of the pixel
+     */
+    public float getEnergy(int row, int col) {
+        return energy[rowOffset[row] + col];
+    }
+
+    /**
+     * @param row the row of the pixel
+     * @param col the column of the pixel
+     * @param value the new energy of the pixel
+     */
+    public void setEnergy(int row, int col, float value) {
+        own();
+        energy[rowOffset[row] + col] = value;
+    }
+
+    /**
+     * This will calculate the brightness of a pixel by averaging its RGB values
+     * @param row the row of the pixel
+     * @param col the column of the pixel
+     * @return the brightness of the pixel
+     */
+    int brightness(int row, int col) {
+        return luma[rowOffset[row] + col] & CHANNEL_MASK;
+    }
+
+    /**
+     * This will average the channels of a packed color
+     * @param value the packed color
+     * @return the brightness as an unsigned byte
+     */
+    static byte brightnessOf(int value) {
+        return (byte) ((red(value) + green(value) + blue(value)) / 3);
+    }
+
+    /**
+     * This will compute the brightness of every pixel from its color, once rows were filled directly
+     */
+    private void fillBrightness() {
+        for (int y = 0; y < height; y++) {
+            int offset = rowOffset[y];
+            if (VECTOR_KERNELS) {
+                VectorKernels.brightness(rgb, offset, rowWidth[y], luma, offset);
+                continue;
+            }
+            for (int x = 0; x < rowWidth[y]; x++) {
+                luma[offset + x] = brightnessOf(rgb[offset + x]);
+            }
+        }
+    }
+
+    /**
+     * This will calculate the energy of one pixel with the same rules as ImageData.calcEnergy:
+     * the first and last rows use themselves as the missing neighbor row, and any neighbor
+     * outside of a row falls back to the brightness of the middle pixel.
+     * @param row the row of the pixel
+     * @param col the column of the pixel
+     * @return the energy of the pixel
+     */
+    public double calcEnergy(int row, int col) {
+        int up = row > 0 ? row - 1 : row;
+        int down = row < height - 1 ? row + 1 : row;
+        int middle = brightness(row, col);
+
+        int upLeft = col > 0 ? brightness(up, col - 1) : middle;
+        int upRight = col < rowWidth[up] - 1 ? brightness(up, col + 1) : middle;
+        int downLeft = col > 0 ? brightness(down, col - 1) : middle;
+        int downRight = col < rowWidth[down] - 1 ? brightness(down, col + 1) : middle;
+        int left = col > 0 ? brightness(row, col - 1) : middle;
+        int right = col < rowWidth[row] - 1 ? brightness(row, col + 1) : middle;
+
+        int horizontal = downLeft + brightness(down, col) * 2 + downRight
+                - (upLeft + brightness(up, col) * 2 + upRight);
+        int vertical = upRight + right * 2 + downRight
+                - (upLeft + left * 2 + downLeft);
+        return Math.sqrt((double) horizontal * horizontal + (double) vertical * vertical);
+    }
+
+    /**
+     * This method will go through each pixel in the store and calculate each pixel's energy
+     */
+    public void computeEnergy() {
+        computeEnergy(null, null);
+    }
+
+    /**
+     * This will calculate every pixel's energy, splitting the rows into stripes on a pool
+     * @param pool the pool to run the stripes on, or null to compute on the calling thread
+     */
+    public void computeEnergy(ForkJoinPool pool) {
+        computeEnergy(pool, null);
+    }
+
+    /**
+     * This will calculate every pixel's energy, counting each row done on a task. A task that is
+     * over stops the pass with the map still marked out of date.
+     * @param pool the pool to run the stripes on, or null to compute on the calling thread
+     * @param task the task to count rows on, or null
+     */
+    void computeEnergy(ForkJoinPool pool, SeamTask task) {
+        own();
+        if (pool == null || pool.getParallelism() <= 1) {
+            for (int y = 0; y < height; y++) {
+                SeamTask.advance(task, 1);
+                computeEnergy(y, 0, rowWidth[y] - 1);
+            }
+        } else {
+            pool.invoke(new EnergyTask(this, task));
+        }
+        energyValid = true;
+        clearDirty();
+        energyGeneration = generation;
+    }
+
+    /**
+     * This will bring the energy map up to date, only recomputing the dirty band of each row
+     * once the whole map has been computed at least once
+     */
+    public void refreshEnergy() {
+        refreshEnergy(null);
+    }
+
+    /**
+     * This will bring the energy map up to date, running the first full pass on a pool
+     * @param pool the pool to run a full pass on, or null to compute on the calling thread
+     */
+    public void refreshEnergy(ForkJoinPool pool) {
+        refreshEnergy(pool, null);
+    }
+
+    /**
+     * This will bring the energy map up to date, counting each row done on a task. A task that is
+     * over stops the pass and leaves the rows it did not reach marked dirty.
+     * @param pool the pool to run a full pass on, or null to compute on the calling thread
+     * @param task the task to count rows on, or null
+     */
+    void refreshEnergy(ForkJoinPool pool, SeamTask task) {
+        if (task != null) task.expect(height);
+        if (!energyValid) {
+            computeEnergy(pool, task);
+            return;
+        }
+        own();
+        for (int y = 0; y < height; y++) {
+            SeamTask.advance(task, 1);
+            if (isDirty(y)) {
+                computeEnergy(y, dirtyLo[y], dirtyHi[y]);
+            }
+        }
+        clearDirty();
+        energyGeneration = generation;
+    }
+
+    /**
+     * This will calculate the energy of a range of pixels in one row
+     * @param row the row to update
+     * @param from the first column to update
+     * @param to the last column to update
+     */
+    void computeEnergy(int row, int from, int to) {
+        // stripes computed in parallel only get here once the whole store has been taken over
+        own();
+        int offset = rowOffset[row];
+        int x = from;
+        if (VECTOR_KERNELS && to > 0) {
+            // column 0 is an edge the kernel leaves to the scalar code
+            if (x == 0) {
+                energy[offset] = (float) calcEnergy(row, 0);
+                x = 1;
+            }
+            x = VectorKernels.energyRow(this, row, x, to);
+        }
+        for (; x <= to; x++) {
+            energy[offset + x] = (float) calcEnergy(row, x);
+        }
+    }
+
+    /**
+     * This will widen the dirty band of a row so its energy gets recomputed on the next refresh
+     * @param row the row to mark, ignored if outside of the image
+     * @param from the first column to mark
+     * @param to the last column to mark
+     */
+    void markDirty(int row, int from, int to) {
+        if (row < 0 || row >= height) return;
+        dirtyLo[row] = Math.min(dirtyLo[row], Math.max(from, 0));
+        dirtyHi[row] = Math.max(dirtyHi[row], Math.min(to, rowWidth[row] - 1));
+    }
+
+    /**
+     * @return the sums of each channel down every column, built the first time they are asked for
+     *         and kept up to date by every edit after that
+     */
+    ColumnStats columnStats() {
+        if (columnStats == null) {
+            columnStats = new ColumnStats(this);
+        }
+        return columnStats;
+    }
+
+    /**
+     * @return the generation of the pixels, which changes with every edit
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the packed colors, one row after another, for kernels that read rows in bulk
+     */
+    int[] rgb() {
+        return rgb;
+    }
+
+    /**
+     * @return the energies, laid out like rgb()
+     */
+    float[] energy() {
+        return energy;
+    }
+
+    /**
+     * @return the brightness of each pixel as an unsigned byte, laid out like rgb()
+     */
+    byte[] luma() {
+        return luma;
+    }
+
+    /**
+     * @param row the row
+     * @return the index of the first pixel of the row in rgb(), energy() and luma()
+     */
+    int rowOffset(int row) {
+        return rowOffset[row];
+    }
+
+    /**
+     * @param row the row
+     * @return the number of live pixels in the row
+     */
+    int rowWidth(int row) {
+        return rowWidth[row];
+    }
+
+    /**
+     * This will throw the whole energy map away, so the next energy pass recomputes every pixel
+     */
+    void invalidateEnergy() {
+        energyValid = false;
+    }
+
+    /**
+     * @return the generation the whole energy map was last up to date at, -1 once a seam moved it since
+     */
+    long getEnergyGeneration() {
+        return energyGeneration;
+    }
+
+    /**
+     * @param row the row
+     * @return true if some energy in the row is out of date
+     */
+    boolean isDirty(int row) {
+        return dirtyLo[row] <= dirtyHi[row];
+    }
+
+    /**
+     * This will go back to the generation the pixels had before edits that were just undone.
+     * If the energy map was last brought up to date at that generation and no seam has moved it
+     * since, it still holds the right values, so the bands the undone edits dirtied are cleared
+     * instead of recomputed.
+     * @param previous the generation from before the undone edits
+     */
+    void revertGeneration(long previous) {
+        if (energyGeneration == previous) {
+            clearDirty();
+        }
+        generation = previous;
+    }
+
+    /**
+     * This will move to a new generation after a seam was removed or inserted, whose energies
+     * were shifted or lost
+     */
+    private void reshaped() {
+        generation = GENERATIONS.incrementAndGet();
+        energyGeneration = -1;
+    }
+
+    /**
+     * This will mark the energy of every row as up to date
+     */
+    private void clearDirty() {
+        Arrays.fill(dirtyLo, Integer.MAX_VALUE);
+        Arrays.fill(dirtyHi, -1);
+    }
+
+    /**
+     * This will mark the pixels whose neighborhood changed after a seam was removed or inserted.
+     * A pixel's energy only depends on the three rows around it, so in each row only the columns
+     * between the seam positions of the neighboring rows, plus one on each side, can change.
+     * @param columns the seam column in each row
+     * @param extra how far past the rightmost seam column the band reaches
+     */
+    private void markSeamDirty(int[] columns, int extra) {
+        for (int y = 0; y < height; y++) {
+            int low = columns[y];
+            int high = columns[y];
+            if (y > 0) {
+                low = Math.min(low, columns[y - 1]);
+                high = Math.max(high, columns[y - 1]);
+            }
+            if (y < height - 1) {
+                low = Math.min(low, columns[y + 1]);
+                high = Math.max(high, columns[y + 1]);
+            }
+            markDirty(y, low - 1, high + extra);
+        }
+    }
+
+    /**
+     * This will move the dirty band of a row to follow its pixels after a column is removed or inserted
+     * @param row the row that changed
+     * @param col the column that was removed or inserted
+     * @param shift -1 for a removal and +1 for an insertion
+     */
+    private void shiftDirty(int row, int col, int shift) {
+        if (dirtyLo[row] > dirtyHi[row]) return;
+        if (dirtyLo[row] > col) dirtyLo[row] += shift;
+        if (dirtyHi[row] >= col) dirtyHi[row] += shift;
+        dirtyHi[row] = Math.min(dirtyHi[row], rowWidth[row] - 1);
+    }
+
+    /**
+     * This will remove several seams that share no pixel at once, closing the gaps of each row in a
+     * single pass instead of shifting the rest of the row once per seam. Every energy is computed
+     * again on the next refresh.
+     * @param seams the column of each seam in each row, all in the columns from before any is removed
+     */
+    public void removeSeams(int[][] seams) {
+        if (seams.length == 0) return;
+        own();
+        int[] columns = new int[seams.length];
+        for (int y = 0; y < height; y++) {
+            for (int i = 0; i < seams.length; i++) {
+                columns[i] = seams[i][y];
+            }
+            Arrays.sort(columns);
+            int offset = rowOffset[y];
+            int write = columns[0];
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0 && columns[i] == columns[i - 1]) {
+                    throw new IllegalArgumentException("Two seams share pixel " + columns[i] + " of row " + y);
+                }
+                int from = columns[i] + 1;
+                int length = (i + 1 < columns.length ? columns[i + 1] : rowWidth[y]) - from;
+                System.arraycopy(rgb, offset + from, rgb, offset + write, length);
+                System.arraycopy(energy, offset + from, energy, offset + write, length);
+                System.arraycopy(luma, offset + from, luma, offset + write, length);
+                write += length;
+            }
+            rowWidth[y] -= columns.length;
+        }
+        energyValid = false;
+        columnStats = null;
+        reshaped();
+    }
+
+    /**
+     * This will remove one pixel from every row and close the gap by shifting the rest of the row left
+     * @param columns the column to remove in each row, indexed by row
+     * @return the packed colors of the removed pixels, indexed by row
+     */
+    public int[] removeSeam(int[] columns) {
+        own();
+        int[] removed = new int[height];
+        for (int y = 0; y < height; y++) {
+            int at = rowOffset[y] + columns[y];
+            int tail = rowWidth[y] - columns[y] - 1;
+            removed[y] = rgb[at];
+            System.arraycopy(rgb, at + 1, rgb, at, tail);
+            System.arraycopy(energy, at + 1, energy, at, tail);
+            System.arraycopy(luma, at + 1, luma, at, tail);
+            rowWidth[y]--;
+            shiftDirty(y, columns[y], -1);
+        }
+        markSeamDirty(columns, 0);
+        reshaped();
+        if (columnStats != null) {
+            columnStats.removeSeam(columns);
+        }
+        return removed;
+    }
+
+    /**
+     * This will put a previously removed seam back by shifting each row right
+     * @param columns the column each pixel goes back to, indexed by row
+     * @param colors the packed colors to restore, indexed by row
+     */
+    public void insertSeam(int[] columns, int[] colors) {
+        own();
+        for (int y = 0; y < height; y++) {
+            int at = rowOffset[y] + columns[y];
+            int tail = rowWidth[y] - columns[y];
+            System.arraycopy(rgb, at, rgb, at + 1, tail);
+            System.arraycopy(energy, at, energy, at + 1, tail);
+            System.arraycopy(luma, at, luma, at + 1, tail);
+            rgb[at] = colors[y];
+            luma[at] = brightnessOf(colors[y]);
+            rowWidth[y]++;
+            shiftDirty(y, columns[y], 1);
+        }
+        markSeamDirty(columns, 1);
+        reshaped();
+        if (columnStats != null) {
+            columnStats.insertSeam(columns);
+        }
+    }
+
+    /**
+     * This will remove one pixel from every column and close the gap by shifting the rest of the
+     * column up. Rows are walked top to bottom so every copy reads and writes whole rows in order.
+     * @param rows the row to remove in each column, indexed by column
+     * @return the packed colors of the removed pixels, indexed by column
+     */
+    public int[] removeHorizontalSeam(int[] rows) {
+        own();
+        int width = getWidth();
+        int[] removed = new int[width];
+        int top = height;
+        for (int x = 0; x < width; x++) {
+            removed[x] = getRgb(rows[x], x);
+            top = Math.min(top, rows[x]);
+        }
+        for (int y = top; y < height - 1; y++) {
+            int at = rowOffset[y];
+            int below = rowOffset[y + 1];
+            for (int x = 0; x < width; x++) {
+                if (rows[x] <= y) {
+                    rgb[at + x] = rgb[below + x];
+                    energy[at + x] = energy[below + x];
+                    luma[at + x] = luma[below + x];
+                }
+            }
+            mergeDirty(y, y + 1);
+        }
+        height--;
+        markHorizontalSeamDirty(rows, 0);
+        reshaped();
+        if (columnStats != null) {
+            columnStats.horizontalSeam(removed, -1);
+        }
+        return removed;
+    }
+
+    /**
+     * This will put a previously removed horizontal seam back by shifting each column down
+     * @param rows the row each pixel goes back to, indexed by column
+     * @param colors the packed colors to restore, indexed by column
+     */
+    public void insertHorizontalSeam(int[] rows, int[] colors) {
+        own();
+        if (height == rowOffset.length) {
+            throw new IllegalStateException("No room left to insert a row");
+        }
+        int width = getWidth();
+        int top = height;
+        for (int x = 0; x < width; x++) {
+            top = Math.min(top, rows[x]);
+        }
+        rowWidth[height] = width;
+        dirtyLo[height] = Integer.MAX_VALUE;
+        dirtyHi[height] = -1;
+        height++;
+        for (int y = height - 1; y > top; y--) {
+            int at = rowOffset[y];
+            int above = rowOffset[y - 1];
+            for (int x = 0; x < width; x++) {
+                if (rows[x] < y) {
+                    rgb[at + x] = rgb[above + x];
+                    energy[at + x] = energy[above + x];
+                    luma[at + x] = luma[above + x];
+                }
+            }
+            mergeDirty(y, y - 1);
+        }
+        for (int x = 0; x < width; x++) {
+            rgb[rowOffset[rows[x]] + x] = colors[x];
+            luma[rowOffset[rows[x]] + x] = brightnessOf(colors[x]);
+        }
+        markHorizontalSeamDirty(rows, 1);
+        reshaped();
+        if (columnStats != null) {
+            columnStats.horizontalSeam(colors, 1);
+        }
+    }
+
+    /**
+     * This will widen the dirty band of a row by the band of another row whose pixels partly moved into it
+     * @param row the row that received pixels
+     * @param from the row the pixels came from
+     */
+    private void mergeDirty(int row, int from) {
+        dirtyLo[row] = Math.min(dirtyLo[row], dirtyLo[from]);
+        dirtyHi[row] = Math.max(dirtyHi[row], dirtyHi[from]);
+    }
+
+    /**
+     * This will mark the pixels whose neighborhood changed after a horizontal seam was removed or
+     * inserted, the same band as markSeamDirty with rows and columns swapped
+     * @param rows the seam row in each column
+     * @param extra how far past the lowest seam row the band reaches
+     */
+    private void markHorizontalSeamDirty(int[] rows, int extra) {
+        int width = rows.length;
+        for (int x = 0; x < width; x++) {
+            int low = rows[x];
+            int high = rows[x];
+            if (x > 0) {
+                low = Math.min(low, rows[x - 1]);
+                high = Math.max(high, rows[x - 1]);
+            }
+            if (x < width - 1) {
+                low = Math.min(low, rows[x + 1]);
+                high = Math.max(high, rows[x + 1]);
+            }
+            for (int y = low - 1; y <= high + extra; y++) {
+                markDirty(y, x, x);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package uk.ac.nulondon;
+
+/**
+ * The PixelView class is a thin Pixel that reads and writes through to a PixelStore.
+ * It lets the Pixel-based API keep working while the image itself lives in primitive arrays.
+ * Once its pixel is removed from the store the view is detached and keeps its own color,
+ * the same way a removed Pixel keeps its color after being unlinked.
+ */
+class PixelView extends Pixel {
+    private final PixelStore store;
+    private final int row;
+    private final int col;
+    private boolean attached = true;
+    private int detachedRgb;
+
+    /**
+     * Constructor that creates a view of one pixel in a store
+     * @param store the store that holds the pixel
+     * @param row the row of the pixel
+     * @param col the column of the pixel
+     */
+    PixelView(PixelStore store, int row, int col) {
+        this.store = store;
+        this.row = row;
+        this.col = col;
+    }
+
+    int getRow() {
+        return row;
+    }
+
+    int getCol() {
+        return col;
+    }
+
+    boolean isAttached() {
+        return attached;
+    }
+
+    /**
+     * This will mark the view as removed from the store
+     * @param rgb the packed color the pixel had when it was removed
+     */
+    void detach(int rgb) {
+        attached = false;
+        detachedRgb = rgb;
+    }
+
+    /**
+     * This will mark the view as part of the store again
+     */
+    void attach() {
+        attached = true;
+    }
+
+    private int rgb() {
+        return attached ? store.getRgb(row, col) : detachedRgb;
+    }
+
+    @Override
+    public void setPixel(int red, int green, int blue) {
+        if (attached) {
+            store.setRgb(row, col, PixelStore.pack(red, green, blue));
+        } else {
+            detachedRgb = PixelStore.pack(red, green, blue);
+        }
+    }
+
+    @Override
+    public void setRed(int red) {
+        setPixel(red, getGreen(), getBlue());
+    }
+
+    @Override
+    public void setGreen(int green) {
+        setPixel(getRed(), green, getBlue());
+    }
+
+    @Override
+    public void setBlue(int blue) {
+        setPixel(getRed(), getGreen(), blue);
+    }
+
+    @Override
+    public int getRed() {
+        return PixelStore.red(rgb());
+    }
+
+    @Override
+    public int getGreen() {
+        return PixelStore.green(rgb());
+    }
+
+    @Override
+    public int getBlue() {
+        return PixelStore.blue(rgb());
+    }
+
+    @Override
+    public void setEnergy(double e) {
+        store.setEnergy(row, col, (float) e);
+    }
+
+    @Override
+    public double getEnergy() {
+        return store.getEnergy(row, col);
+    }
+
+    @Override
+    public Pixel getLeft() {
+        return col > 0 ? new PixelView(store, row, col - 1) : null;
+    }
+
+    @Override
+    public Pixel getRight() {
+        return col < store.rowWidth(row) - 1 ? new PixelView(store, row, col + 1) : null;
+    }
+
+    @Override
+    public int getSizeLink() {
+        return store.rowWidth(row) - col;
+    }
+
+    @Override
+    public void setLeft(Pixel left) {
+        throw new UnsupportedOperationException("Neighbors of a stored pixel are managed by its PixelStore");
+    }
+
+    @Override
+    public void setRight(Pixel right) {
+        throw new UnsupportedOperationException("Neighbors of a stored pixel are managed by its PixelStore");
+    }
+}
@@ -0,0 +1,112 @@
+package uk.ac.nulondon;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The PreviewExporter class writes preview images on a background thread.
+ * Each preview is a copy of the pixels taken when it is submitted, so carving can carry on while
+ * it is encoded. Only the newest waiting preview is kept: one that is replaced before the encoder
+ * gets to it is dropped, and flush guarantees the last one submitted has been written.
+ * Previews use their own output format, which is usually a fast one rather than the final format.
+ */
+public class PreviewExporter {
+    // One preview waiting to be written: the image and the file it goes to
+    private record Preview(BufferedImage image, String file) {
+    }
+
+    // How previews are encoded
+    private final OutputFormat format;
+    // The newest preview not yet picked up by the encoder
+    private final AtomicReference<Preview> pending = new AtomicReference<>();
+    // The single encoder thread
+    private final ExecutorService encoder = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "preview-encoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor that writes previews as PNG at the default compression
+     */
+    public PreviewExporter() {
+        this(OutputFormat.PNG);
+    }
+
+    /**
+     * Constructor that writes previews in a chosen format
+     * @param format how previews are encoded
+     */
+    public PreviewExporter(OutputFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * @return the format previews are written in
+     */
+    public OutputFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * This will queue a preview of the image, replacing any preview that has not been written yet
+     * @param imageData the image to take a snapshot of
+     * @param file the filepath to write the preview to
+     */
+    public void submit(ImageData imageData, String file) {
+        BufferedImage snapshot = imageData.snapshot();
+        if (snapshot == null) {
+            System.out.println("No pixel data available to export.");
+            return;
+        }
+        // only schedule the encoder when nothing was waiting, otherwise it picks this one up
+        if (pending.getAndSet(new Preview(snapshot, file)) == null) {
+            encoder.execute(this::drain);
+        }
+    }
+
+    /**
+     * This will write the newest waiting preview, if any
+     */
+    private void drain() {
+        Preview preview = pending.getAndSet(null);
+        if (preview == null) return;
+        try {
+            format.write(preview.image(), new File(preview.file()));
+        } catch (IOException e) {
+            System.out.println("ERROR EXPORTING IMAGE: " + e.getMessage());
+        }
+    }
+
+    /**
+     * This will wait until the last submitted preview has been written
+     */
+    public void flush() {
+        try {
+            encoder.submit(this::drain).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println("ERROR EXPORTING IMAGE: " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * This will write the last submitted preview and stop the encoder thread
+     */
+    public void close() {
+        flush();
+        encoder.shutdown();
+        try {
+            encoder.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package uk.ac.nulondon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The PyramidSeamFinder class finds an approximate seam from coarse to fine.
+ * Each coarser level averages 2x2 blocks of the level below it. The seam is found exactly on the
+ * coarsest level, then each finer level runs the program only inside a band of columns around the
+ * path projected down from the level above, so the full-resolution image is only searched along
+ * a strip a few pixels wide. The result can differ from the exact seam when the best path leaves
+ * the band; ImageData.seamDrift measures by how much.
+ * Like SeamFinder, a horizontal finder reads the store transposed and a finder keeps its buffers,
+ * so it is not safe to use one finder from two threads at once.
+ */
+class PyramidSeamFinder {
+    // levels stop getting coarser once a side would be shorter than this
+    static final int MIN_SIDE = 16;
+    // how many pixels either side of the coarse seam a finer level searches unless told otherwise
+    static final int DEFAULT_BAND = 8;
+
+    private final boolean isBlue;
+    private final boolean horizontal;
+    private final int levels;
+    private final int band;
+    private PixelStore store;
+    // width and height of each level, level 0 being the store itself
+    private int[] widths;
+    private int[] heights;
+    // averaged values of each coarse level, index 0 unused
+    private final List<float[]> coarse = new ArrayList<>();
+    // two rows of the level being averaged
+    private float[] fineRows = new float[0];
+    // back-pointers of the band, one row of the widest window after another
+    private byte[] steps = new byte[0];
+    // pixels of the store a refined seam may not go through, indexed by row then column, or null
+    private BitSet taken;
+    // what each cell of the row being searched adds to a seam
+    private double[] cells = new double[0];
+
+    /**
+     * Constructor that creates a pyramid finder for one kind of seam
+     * @param isBlue true for the greatest-blue seam, false for the lowest-energy seam
+     * @param horizontal true to find a seam with one pixel per column instead of one per row
+     * @param levels how many times to halve the image at most
+     * @param band how many pixels either side of the projected path each finer level searches
+     */
+    PyramidSeamFinder(boolean isBlue, boolean horizontal, int levels, int band) {
+        if (levels < 1 || band < 1) {
+            throw new IllegalArgumentException("Pyramid levels and band must be at least 1");
+        }
+        this.isBlue = isBlue;
+        this.horizontal = horizontal;
+        this.levels = levels;
+        this.band = band;
+    }
+
+    /**
+     * This will find a seam on the coarsest level and refine it down to full resolution
+     * @param image the image to search, with its energies up to date
+     * @return the column of the seam in each row, indexed by row, or for a horizontal finder
+     *         the row of the seam in each column, indexed by column
+     */
+    int[] find(PixelStore image) {
+        this.store = image;
+        taken = null;
+        int top = build();
+
+        int[] lo = new int[heights[top]];
+        int[] hi = new int[heights[top]];
+        Arrays.fill(hi, widths[top] - 1);
+        int[] seam = search(top, lo, hi);
+
+        for (int level = top - 1; level >= 0; level--) {
+            int width = widths[level];
+            lo = new int[heights[level]];
+            hi = new int[heights[level]];
+            for (int row = 0; row < lo.length; row++) {
+                int center = 2 * seam[Math.min(row / 2, seam.length - 1)];
+                lo[row] = Math.max(0, center - band);
+                hi[row] = Math.min(width - 1, center + 1 + band);
+            }
+            seam = search(level, lo, hi);
+        }
+        return seam;
+    }
+
+    /**
+     * This will search the full-resolution image only inside the band around a guide seam, such as
+     * the same seam on the previous frame of a video, without building any coarse level
+     * @param image the image to search, with its energies up to date
+     * @param guide a seam indexed like the result of find, with one entry per row of the store
+     * @param blocked the pixels the seam may not go through, at row * width + column of the seam's
+     *                rows and columns, or null to allow every pixel
+     * @param within how many pixels either side of the guide the seam may go
+     * @return the best seam that stays within that many pixels of the guide in every row, or null if
+     *         taken pixels leave no way through the band
+     */
+    int[] refine(PixelStore image, int[] guide, BitSet blocked, int within) {
+        this.store = image;
+        this.taken = blocked;
+        int width = horizontal ? image.getHeight() : image.getWidth();
+        int height = horizontal ? image.getWidth() : image.getHeight();
+        if (guide.length != height) {
+            throw new IllegalArgumentException("The guide seam has " + guide.length + " pixels, the image " + height);
+        }
+        widths = new int[] {width};
+        heights = new int[] {height};
+        int[] lo = new int[height];
+        int[] hi = new int[height];
+        for (int row = 0; row < height; row++) {
+            int center = Math.min(Math.max(guide[row], 0), width - 1);
+            lo[row] = Math.max(0, center - within);
+            hi[row] = Math.min(width - 1, center + within);
+            // a guide that jumps further than one column between rows leaves a gap the seam could not
+            // cross, so the band stretches back to within a step of the row above
+            if (row > 0) {
+                lo[row] = Math.min(lo[row], hi[row - 1] + 1);
+                hi[row] = Math.max(hi[row], lo[row - 1] - 1);
+            }
+        }
+        int[] seam = search(0, lo, hi);
+        this.taken = null;
+        return seam;
+    }
+
+    /**
+     * This will average the store down into as many coarse levels as fit
+     * @return the index of the coarsest level
+     */
+    private int build() {
+        int width = horizontal ? store.getHeight() : store.getWidth();
+        int height = horizontal ? store.getWidth() : store.getHeight();
+        int top = 0;
+        while (top < levels && (width + 1) / 2 >= MIN_SIDE && (height + 1) / 2 >= MIN_SIDE) {
+            top++;
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+        }
+        widths = new int[top + 1];
+        heights = new int[top + 1];
+        widths[0] = horizontal ? store.getHeight() : store.getWidth();
+        heights[0] = horizontal ? store.getWidth() : store.getHeight();
+        while (coarse.size() <= top) {
+            coarse.add(null);
+        }
+        for (int level = 1; level <= top; level++) {
+            int fineWidth = widths[level - 1];
+            int fineHeight = heights[level - 1];
+            widths[level] = (fineWidth + 1) / 2;
+            heights[level] = (fineHeight + 1) / 2;
+            float[] values = coarse.get(level);
+            if (values == null || values.length < widths[level] * heights[level]) {
+                values = new float[widths[level] * heights[level]];
+                coarse.set(level, values);
+            }
+            if (fineRows.length < 2 * fineWidth) {
+                fineRows = new float[2 * fineWidth];
+            }
+            for (int row = 0; row < heights[level]; row++) {
+                int fineRow = 2 * row;
+                boolean twoRows = fineRow + 1 < fineHeight;
+                readRow(level - 1, fineRow, fineRows, 0);
+                if (twoRows) {
+                    readRow(level - 1, fineRow + 1, fineRows, fineWidth);
+                }
+                int base = row * widths[level];
+                for (int col = 0; col < widths[level]; col++) {
+                    int fineCol = 2 * col;
+                    boolean twoCols = fineCol + 1 < fineWidth;
+                    float sum = fineRows[fineCol];
+                    int count = 1;
+                    if (twoCols) {
+                        sum += fineRows[fineCol + 1];
+                        count++;
+                    }
+                    if (twoRows) {
+                        sum += fineRows[fineWidth + fineCol];
+                        count++;
+                        if (twoCols) {
+                            sum += fineRows[fineWidth + fineCol + 1];
+                            count++;
+                        }
+                    }
+                    values[base + col] = sum / count;
+                }
+            }
+        }
+        return top;
+    }
+
+    /**
+     * This will copy the values of one row of a level, reading the store's arrays directly on level 0
+     * @param level the level to read
+     * @param row the row of the level
+     * @param into where to put the values
+     * @param offset the index of into to put the first value at
+     */
+    private void readRow(int level, int row, float[] into, int offset) {
+        int width = widths[level];
+        if (level > 0) {
+            System.arraycopy(coarse.get(level), row * width, into, offset, width);
+        } else if (horizontal) {
+            for (int col = 0; col < width; col++) {
+                into[offset + col] = isBlue ? PixelStore.blue(store.getRgb(col, row)) : store.getEnergy(col, row);
+            }
+        } else {
+            int start = store.rowOffset(row);
+            int[] rgb = store.rgb();
+            float[] energy = store.energy();
+            for (int col = 0; col < width; col++) {
+                into[offset + col] = isBlue ? PixelStore.blue(rgb[start + col]) : energy[start + col];
+            }
+        }
+    }
+
+    /**
+     * This will run the program on one level, only over the columns between lo and hi of each row.
+     * Ties break like SeamFinder, so with a window covering every column the result is the exact seam.
+     * @param level the level to search
+     * @param lo the first column of each row that may be part of the seam
+     * @param hi the last column of each row that may be part of the seam
+     * @return the column of the seam in each row of the level
+     */
+    private int[] search(int level, int[] lo, int[] hi) {
+        int height = heights[level];
+        int window = 0;
+        for (int row = 0; row < height; row++) {
+            window = Math.max(window, hi[row] - lo[row] + 1);
+        }
+        if (steps.length < height * window) {
+            steps = new byte[height * window];
+        }
+        double unreachable = isBlue ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        double[] previous = new double[window];
+        double[] current = new double[window];
+        if (cells.length < window) {
+            cells = new double[window];
+        }
+        readCells(level, 0, lo[0], hi[0], unreachable);
+        System.arraycopy(cells, 0, previous, 0, hi[0] - lo[0] + 1);
+
+        for (int row = 1; row < height; row++) {
+            int prevLo = lo[row - 1];
+            int prevHi = hi[row - 1];
+            readCells(level, row, lo[row], hi[row], unreachable);
+            for (int col = lo[row]; col <= hi[row]; col++) {
+                double bestSoFar = col >= prevLo && col <= prevHi ? previous[col - prevLo] : unreachable;
+                byte step = 0;
+                if (col - 1 >= prevLo && col - 1 <= prevHi && isBetter(previous[col - 1 - prevLo], bestSoFar)) {
+                    bestSoFar = previous[col - 1 - prevLo];
+                    step = -1;
+                }
+                if (col + 1 >= prevLo && col + 1 <= prevHi && isBetter(previous[col + 1 - prevLo], bestSoFar)) {
+                    bestSoFar = previous[col + 1 - prevLo];
+                    step = 1;
+                }
+                current[col - lo[row]] = bestSoFar + cells[col - lo[row]];
+                steps[row * window + col - lo[row]] = step;
+            }
+            double[] values = previous;
+            previous = current;
+            current = values;
+        }
+
+        int[] seam = new int[height];
+        int col = lo[height - 1] + SeamFinder.bestIndex(previous, hi[height - 1] - lo[height - 1] + 1, isBlue);
+        // only taken pixels make a cell unreachable, when they block every way through the band
+        if (previous[col - lo[height - 1]] == unreachable) return null;
+        for (int row = height - 1; row >= 0; row--) {
+            seam[row] = col;
+            col += steps[row * window + col - lo[row]];
+        }
+        return seam;
+    }
+
+    /**
+     * This will read what each cell between two columns of a row adds to a seam into cells, once
+     * for the whole row instead of once per cell, with taken pixels unreachable
+     */
+    private void readCells(int level, int row, int from, int to, double unreachable) {
+        if (level > 0) {
+            float[] values = coarse.get(level);
+            int base = row * widths[level];
+            for (int col = from; col <= to; col++) {
+                cells[col - from] = values[base + col];
+            }
+        } else if (horizontal) {
+            for (int col = from; col <= to; col++) {
+                cells[col - from] = isBlue ? PixelStore.blue(store.getRgb(col, row)) : store.getEnergy(col, row);
+            }
+        } else {
+            int start = store.rowOffset(row);
+            int[] rgb = store.rgb();
+            float[] energy = store.energy();
+            for (int col = from; col <= to; col++) {
+                cells[col - from] = isBlue ? PixelStore.blue(rgb[start + col]) : energy[start + col];
+            }
+        }
+        if (taken != null) {
+            // one get per cell, nextSetBit would scan to the end of the image past the last taken pixel
+            int base = row * widths[0];
+            for (int col = from; col <= to; col++) {
+                if (taken.get(base + col)) cells[col - from] = unreachable;
+            }
+        }
+    }
+
+    /**
+     * @return the value a cell of a level adds to a seam, read from the store on level 0
+     */
+    private double value(int level, int row, int col) {
+        if (level > 0) {
+            return coarse.get(level)[row * widths[level] + col];
+        }
+        if (horizontal) {
+            return isBlue ? PixelStore.blue(store.getRgb(col, row)) : store.getEnergy(col, row);
+        }
+        return isBlue ? PixelStore.blue(store.getRgb(row, col)) : store.getEnergy(row, col);
+    }
+
+    /**
+     * @return true if candidate beats best, greater for blue seams and smaller for energy seams
+     */
+    private boolean isBetter(double candidate, double best) {
+        return isBlue ? candidate > best : candidate < best;
+    }
+
+    /**
+     * This will add up what a seam's pixels contribute, to compare an approximate seam with the exact one
+     * @param image the image the seam is in
+     * @param seam the seam, indexed like the result of find
+     * @return the total value of the seam
+     */
+    double cost(PixelStore image, int[] seam) {
+        this.store = image;
+        double total = 0;
+        for (int row = 0; row < seam.length; row++) {
+            total += value(0, row, seam[row]);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,384 @@
+package uk.ac.nulondon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The SeamFinder class runs the seam dynamic program on a PixelStore.
+ * Every cell keeps the cumulative value of the best seam ending at it and a one byte back-pointer
+ * to the cell it came from in the row above. Large images can be split into column chunks that
+ * run on a pool, one block of rows at a time. A horizontal finder runs the same program on a
+ * transposed view of the store, reading pixel (row, col) of the view from (col, row) of the image,
+ * so no rotated copy of the image is ever made. A finder keeps its buffers between searches, so
+ * removing many seams in a row does not allocate a new back-pointer table for each one; it is
+ * not safe to use one finder from two threads at once. A search given a SeamTask counts its rows
+ * on it and stops at the next row, or the next block of rows on a pool, once the task is over.
+ */
+class SeamFinder {
+    // images with fewer pixels than this always run on the calling thread
+    static final int PARALLEL_PIXELS = 512 * 512;
+    // how many rows each chunk computes between two synchronisations
+    static final int BLOCK_ROWS = 32;
+    // the narrowest column chunk given to one worker
+    static final int MIN_CHUNK = 256;
+    // the order the cells above are tried in, straight up first so ties break like the program
+    private static final int[] STEPS = {0, -1, 1};
+
+    private final boolean isBlue;
+    private final boolean horizontal;
+    // whether vertical searches run whole vectors of cells through VectorKernels
+    private boolean vectorized = PixelStore.VECTOR_KERNELS;
+    private PixelStore store;
+    private int width;
+    private int height;
+    // which way each cell's seam goes in the row above: -1, 0 or +1
+    private byte[] steps = new byte[0];
+    // the two rolling rows of cumulative values
+    private double[] rowA = new double[0];
+    private double[] rowB = new double[0];
+    // cumulative value of every cell, only kept while finding several seams at once
+    private float[] costs;
+    // the task the current search counts its rows on, or null
+    private SeamTask task;
+
+    /**
+     * Constructor that creates a finder for one kind of vertical seam
+     * @param isBlue true for the greatest-blue seam, false for the lowest-energy seam
+     */
+    SeamFinder(boolean isBlue) {
+        this(isBlue, false);
+    }
+
+    /**
+     * Constructor that creates a finder for one kind of seam
+     * @param isBlue true for the greatest-blue seam, false for the lowest-energy seam
+     * @param horizontal true to find a seam with one pixel per column instead of one per row
+     */
+    SeamFinder(boolean isBlue, boolean horizontal) {
+        this.isBlue = isBlue;
+        this.horizontal = horizontal;
+    }
+
+    /**
+     * @param vectorized whether vertical searches run whole vectors of cells through VectorKernels
+     */
+    void setVectorized(boolean vectorized) {
+        this.vectorized = vectorized;
+    }
+
+    /**
+     * This will find the best seam, running row blocks on the pool when the image is large enough
+     * @param image the image to search
+     * @param pool the pool to split rows across, or null to run on the calling thread
+     * @return the column of the seam in each row, indexed by row, or for a horizontal finder
+     *         the row of the seam in each column, indexed by column
+     */
+    int[] find(PixelStore image, ForkJoinPool pool) {
+        return find(image, pool, null);
+    }
+
+    /**
+     * This will find the best seam like find, counting the rows of the program on a task
+     * @param progress the task to count rows on, or null
+     * @throws java.util.concurrent.CancellationException if the task is over before the last row
+     */
+    int[] find(PixelStore image, ForkJoinPool pool, SeamTask progress) {
+        costs = null;
+        this.task = progress;
+        double[] lastRow = run(image, pool);
+        return backtrack(bestIndex(lastRow, width, isBlue));
+    }
+
+    /**
+     * This will find several seams that do not share any pixel from a single pass of the program.
+     * The cumulative value of every cell is kept, the ends of the last row are ranked from best to
+     * worst, and each one is walked back up, stepping to the best cell above that no earlier seam
+     * has taken. A walk that gets boxed in by earlier seams is dropped and the next end is tried.
+     * @param image the image to search
+     * @param pool the pool to split rows across, or null to run on the calling thread
+     * @param count how many seams to find, at most the width of the image
+     * @return the seams in order from best to worst, each indexed like the result of find
+     */
+    int[][] findSeams(PixelStore image, ForkJoinPool pool, int count) {
+        costs = new float[image.getWidth() * image.getHeight()];
+        task = null;
+        run(image, pool);
+        int last = (height - 1) * width;
+        Integer[] ends = new Integer[width];
+        for (int col = 0; col < width; col++) {
+            ends[col] = col;
+        }
+        Arrays.sort(ends, (a, b) -> isBlue ? Float.compare(costs[last + b], costs[last + a])
+                : Float.compare(costs[last + a], costs[last + b]));
+
+        BitSet used = new BitSet(width * height);
+        List<int[]> seams = new ArrayList<>();
+        for (int e = 0; e < width && seams.size() < count; e++) {
+            int[] seam = walkUnused(ends[e], used);
+            if (seam != null) {
+                seams.add(seam);
+            }
+        }
+        costs = null;
+        return seams.toArray(new int[0][]);
+    }
+
+    /**
+     * This will walk a seam up from the last row through cells no earlier seam has taken,
+     * marking its cells as taken if it reaches the first row
+     * @param col the column the seam ends at in the last row
+     * @param used the cells taken by earlier seams
+     * @return the seam indexed by row, or null if it got boxed in
+     */
+    private int[] walkUnused(int col, BitSet used) {
+        int[] seam = new int[height];
+        int row = height - 1;
+        if (used.get(row * width + col)) return null;
+        seam[row] = col;
+        while (row > 0) {
+            row--;
+            int base = row * width;
+            int best = -1;
+            for (int step : STEPS) {
+                int candidate = seam[row + 1] + step;
+                if (candidate < 0 || candidate >= width || used.get(base + candidate)) continue;
+                if (best < 0 || (isBlue ? costs[base + candidate] > costs[base + best]
+                        : costs[base + candidate] < costs[base + best])) {
+                    best = candidate;
+                }
+            }
+            if (best < 0) return null;
+            seam[row] = best;
+        }
+        for (int r = 0; r < height; r++) {
+            used.set(r * width + seam[r]);
+        }
+        return seam;
+    }
+
+    /**
+     * This will run the program over the whole store, filling the back-pointers
+     * and, if costs is set, the cumulative value of every cell
+     * @return the cumulative values of the last row
+     */
+    private double[] run(PixelStore image, ForkJoinPool pool) {
+        this.store = image;
+        this.width = horizontal ? image.getHeight() : image.getWidth();
+        this.height = horizontal ? image.getWidth() : image.getHeight();
+        if (steps.length < width * height) {
+            steps = new byte[width * height];
+        }
+        if (rowA.length < width) {
+            rowA = new double[width];
+            rowB = new double[width];
+        }
+        if (task != null) task.expect(height);
+        SeamTask.advance(task, 1);
+        double[] previousValues = rowA; // the row above's values
+        double[] currentValues = rowB;  // current row's values
+
+        // initializing for first row
+        for (int col = 0; col < width; col++) {
+            previousValues[col] = seamValue(0, col);
+            if (costs != null) {
+                costs[col] = (float) previousValues[col];
+            }
+        }
+
+        int chunks = pool == null ? 1 : Math.min(pool.getParallelism(), width / MIN_CHUNK);
+        if (chunks <= 1 || (long) width * height < PARALLEL_PIXELS) {
+            for (int row = 1; row < height; row++) {
+                SeamTask.advance(task, 1);
+                computeRow(row, previousValues, currentValues, 0, 0, width, true);
+                double[] values = previousValues;
+                previousValues = currentValues;
+                currentValues = values;
+            }
+        } else {
+            for (int row = 1; row < height; row += BLOCK_ROWS) {
+                int last = Math.min(height, row + BLOCK_ROWS);
+                SeamTask.advance(task, last - row);
+                pool.invoke(new BlockTask(previousValues, currentValues, row, last, chunks, 0, chunks));
+                double[] values = previousValues;
+                previousValues = currentValues;
+                currentValues = values;
+            }
+        }
+        return previousValues;
+    }
+
+    /**
+     * This will compute the cumulative values and back-pointers of a range of cells in one row.
+     * The arrays may cover only part of the row, in which case base is the column of index 0.
+     * @param row the row being computed
+     * @param previous the values of the row above
+     * @param current where the values of this row are written
+     * @param base the column stored at index 0 of previous and current
+     * @param from the first column to compute
+     * @param to one past the last column to compute
+     * @param record whether to store the back-pointers, and costs if kept, of these cells
+     */
+    private void computeRow(int row, double[] previous, double[] current, int base, int from, int to,
+                            boolean record) {
+        // the kernel covers the cells with a neighbor above on both sides, and only reads rows of the store
+        int start = Math.max(from, 1);
+        int end = Math.min(to, width - 1);
+        if (!vectorized || horizontal || start >= end) {
+            computeCells(row, previous, current, base, from, to, record);
+            return;
+        }
+        computeCells(row, previous, current, base, from, start, record);
+        int done = VectorKernels.relaxRow(previous, current, base, start, end, isBlue ? store.rgb() : null,
+                store.energy(), store.rowOffset(row), isBlue, record ? steps : null, row * width);
+        if (record && costs != null) {
+            for (int index = start; index < done; index++) {
+                costs[row * width + index] = (float) current[index - base];
+            }
+        }
+        computeCells(row, previous, current, base, done, to, record);
+    }
+
+    /**
+     * This will compute the cumulative values and back-pointers of a range of cells one at a time,
+     * with the same arguments as computeRow
+     */
+    private void computeCells(int row, double[] previous, double[] current, int base, int from, int to,
+                              boolean record) {
+        int stepBase = row * width;
+        for (int index = from; index < to; index++) {
+            int i = index - base;
+            double bestSoFar = previous[i];
+            byte step = 0;
+
+            if (index > 0 && isBetter(previous[i - 1], bestSoFar)) {
+                bestSoFar = previous[i - 1];
+                step = -1;
+            }
+            if (index < width - 1 && isBetter(previous[i + 1], bestSoFar)) {
+                bestSoFar = previous[i + 1];
+                step = 1;
+            }
+
+            current[i] = bestSoFar + seamValue(row, index);
+            if (record) {
+                steps[stepBase + index] = step;
+                if (costs != null) {
+                    costs[stepBase + index] = (float) current[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * This will walk the back-pointers up from a cell of the last row
+     * @param col the column the seam ends at in the last row
+     * @return the column of the seam in each row, indexed by row
+     */
+    private int[] backtrack(int col) {
+        int[] columns = new int[height];
+        for (int row = height - 1; row >= 0; row--) {
+            columns[row] = col;
+            col += steps[row * width + col];
+        }
+        return columns;
+    }
+
+    /**
+     * @return the value a pixel of the view adds to a seam, its blue component or its energy
+     */
+    private double seamValue(int row, int col) {
+        if (horizontal) {
+            return isBlue ? PixelStore.blue(store.getRgb(col, row)) : store.getEnergy(col, row);
+        }
+        return isBlue ? PixelStore.blue(store.getRgb(row, col)) : store.getEnergy(row, col);
+    }
+
+    /**
+     * @return true if candidate beats best, greater for blue seams and smaller for energy seams
+     */
+    private boolean isBetter(double candidate, double best) {
+        return isBlue ? candidate > best : candidate < best;
+    }
+
+    /**
+     * This will get the index of the best value in a row, the first one on ties
+     * @param array the cumulative values of a row
+     * @param length how many values of the array belong to the row
+     * @param isBlue true to find the greatest value, false to find the smallest
+     * @return the index of the lowest/highest value in the row
+     */
+    static int bestIndex(double[] array, int length, boolean isBlue) {
+        int maxIndex = 0;
+        for (int i = 0; i < length; i++) {
+            if (isBlue ? array[i] > array[maxIndex] : array[i] < array[maxIndex]) {
+                maxIndex = i;
+            }
+        }
+        return maxIndex;
+    }
+
+    /**
+     * The BlockTask class computes a block of rows for a range of column chunks.
+     * A chunk only depends on the row above it, so over a block of rows it depends on the cells
+     * up to one column further per row on each side. Each chunk recomputes that halo itself from
+     * the shared row at the top of the block, which lets all chunks run a whole block without
+     * waiting on each other. Only the chunk's own columns are written back.
+     */
+    private final class BlockTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] top;
+        private final double[] bottom;
+        private final int firstRow;
+        private final int lastRow;
+        private final int chunks;
+        private final int fromChunk;
+        private final int toChunk;
+
+        BlockTask(double[] top, double[] bottom, int firstRow, int lastRow, int chunks, int fromChunk, int toChunk) {
+            this.top = top;
+            this.bottom = bottom;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.chunks = chunks;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk > 1) {
+                int middle = (fromChunk + toChunk) >>> 1;
+                invokeAll(new BlockTask(top, bottom, firstRow, lastRow, chunks, fromChunk, middle),
+                        new BlockTask(top, bottom, firstRow, lastRow, chunks, middle, toChunk));
+                return;
+            }
+            int from = (int) ((long) width * fromChunk / chunks);
+            int to = (int) ((long) width * (fromChunk + 1) / chunks);
+            int halo = lastRow - firstRow;
+            int low = Math.max(0, from - halo);
+            int high = Math.min(width, to + halo);
+
+            double[] previous = new double[high - low];
+            double[] current = new double[high - low];
+            System.arraycopy(top, low, previous, 0, high - low);
+            for (int row = firstRow; row < lastRow; row++) {
+                // the halo shrinks by one column per row on every side that is not an image edge
+                int shrink = row - firstRow + 1;
+                int rowFrom = low == 0 ? 0 : low + shrink;
+                int rowTo = high == width ? width : high - shrink;
+                computeRow(row, previous, current, low, rowFrom, from, false);
+                computeRow(row, previous, current, low, from, to, true);
+                computeRow(row, previous, current, low, to, rowTo, false);
+                double[] values = previous;
+                previous = current;
+                current = values;
+            }
+            System.arraycopy(previous, from - low, bottom, from, to - from);
+        }
+    }
+}
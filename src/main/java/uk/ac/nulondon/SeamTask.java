@@ -0,0 +1,90 @@
+package uk.ac.nulondon;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * The SeamTask class is the handle of a seam searched for on another thread by
+ * ImageEdit.highlightColumnAsync. It completes with the highlighted pixels, and counts the rows
+ * the energy pass and the seam program have gone through. The search checks the task between
+ * rows, so cancelling it or letting its deadline pass stops the search at the next row, and a
+ * task that did not complete normally never highlights anything.
+ */
+public class SeamTask extends CompletableFuture<List<Pixel>> {
+    // rows the energy pass and the seam program have gone through so far
+    private final AtomicLong rowsDone = new AtomicLong();
+    // rows the whole search goes through, known once it starts
+    private volatile long totalRows;
+
+    /**
+     * This will count rows as done, stopping the search if the task is already over
+     * @param rows how many more rows were gone through
+     * @throws CancellationException if the task was cancelled or ran past its deadline
+     */
+    void advance(int rows) {
+        if (isDone()) {
+            throw new CancellationException("Seam search stopped after " + rowsDone.get() + " rows");
+        }
+        rowsDone.addAndGet(rows);
+    }
+
+    /**
+     * This will count rows as done on a task that may be null, for searches nobody is waiting on
+     */
+    static void advance(SeamTask task, int rows) {
+        if (task != null) task.advance(rows);
+    }
+
+    /**
+     * This will add the rows of one more pass to the total
+     * @param rows how many rows the pass goes through
+     */
+    void expect(long rows) {
+        totalRows += rows;
+    }
+
+    /**
+     * This will run the last step of the search, which changes the image, and complete the task
+     * with its result. A cancel or deadline cannot land halfway through it.
+     * @param step the step, only run if the task is not over yet
+     */
+    synchronized void finish(Supplier<List<Pixel>> step) {
+        if (!isDone()) complete(step.get());
+    }
+
+    @Override
+    public final synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        return super.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public final synchronized boolean completeExceptionally(Throwable error) {
+        return super.completeExceptionally(error);
+    }
+
+    /**
+     * @return how many rows the search has gone through
+     */
+    public long getRowsDone() {
+        return rowsDone.get();
+    }
+
+    /**
+     * @return how many rows the search goes through in all, 0 until it starts or if it needs none
+     */
+    public long getTotalRows() {
+        return totalRows;
+    }
+
+    /**
+     * @return the share of the rows gone through, from 0 to 1, and 1 once the task is over
+     */
+    public double getProgress() {
+        if (isDone()) return 1;
+        long total = totalRows;
+        return total == 0 ? 0 : Math.min(1, (double) rowsDone.get() / total);
+    }
+}
@@ -0,0 +1,437 @@
+package uk.ac.nulondon;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The UndoJournal class keeps the edits of an ImageEdit as packed seams.
+ * Every seam is a pair of int arrays, its positions and its packed colors, so an entry costs
+ * about eight bytes per seam pixel and holds no reference into the image. The newest entries stay
+ * on the heap up to a memory budget; older ones are appended to a temporary file and read back
+ * through a FileChannel when undo reaches them, so the undo depth is bounded by disk, not heap.
+ * The newest entry is always kept on the heap so it can still be marked as deleted.
+ */
+class UndoJournal implements Closeable {
+    // heap kept for recent entries unless told otherwise
+    static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+    // the kinds of entry
+    static final int HIGHLIGHT = 0;
+    static final int HIGHLIGHT_HORIZONTAL = 1;
+    static final int CARVE = 2;
+    // the bits of a spilled header's first int that hold the kind, and the bit set for a deleted seam
+    private static final int KIND_MASK = 0xff;
+    private static final int DELETED_FLAG = 0x100;
+    // rough heap cost of an entry and of each of its seams besides the ints themselves
+    private static final int ENTRY_BYTES = 64;
+    private static final int SEAM_BYTES = 32;
+    // spilled entries the offset table has room for before it first grows
+    private static final int INITIAL_SPILLS = 16;
+
+    // A class for one undoable edit: its kind and its seams, split into groups.
+    // A highlight has one group with the seam's original colors; a carve has the inserted columns,
+    // the removed columns and the removed rows, each seam with its positions and colors
+    static class Entry {
+        private final int kind;
+        private boolean deleted;
+        // the generation of the image before and after the edit, so undo can go back to the first
+        private long before = -1;
+        private long after = -1;
+        private final int[] groups;
+        private final int[][] positions;
+        private final int[][] colors;
+
+        /**
+         * Constructor that creates an entry out of its seams
+         * @param kind HIGHLIGHT, HIGHLIGHT_HORIZONTAL or CARVE
+         * @param groups how many seams each group holds, in order
+         * @param positions the positions of every seam, group after group
+         * @param colors the colors of every seam, in the same order as positions
+         */
+        Entry(int kind, int[] groups, int[][] positions, int[][] colors) {
+            this.kind = kind;
+            this.groups = groups;
+            this.positions = positions;
+            this.colors = colors;
+        }
+
+        /**
+         * This will make an entry for a highlighted seam
+         * @param positions the column of the seam in each row, or the row in each column if horizontal
+         * @param colors the colors the seam had before it was highlighted
+         * @param horizontal whether the seam has one pixel per column
+         * @return the entry
+         */
+        static Entry highlight(int[] positions, int[] colors, boolean horizontal) {
+            return new Entry(horizontal ? HIGHLIGHT_HORIZONTAL : HIGHLIGHT, new int[] {1},
+                    new int[][] {positions}, new int[][] {colors});
+        }
+
+        /**
+         * This will make an entry for a carveTo batch
+         * @param inserted the seams returned by insertColumns
+         * @param columns the seams returned by carveColumns
+         * @param rows the seams returned by carveRows
+         * @return the entry
+         */
+        static Entry carve(List<Pair<int[], int[]>> inserted, List<Pair<int[], int[]>> columns,
+                           List<Pair<int[], int[]>> rows) {
+            List<Pair<int[], int[]>> all = new ArrayList<>(inserted);
+            all.addAll(columns);
+            all.addAll(rows);
+            int[][] positions = new int[all.size()][];
+            int[][] colors = new int[all.size()][];
+            for (int i = 0; i < all.size(); i++) {
+                positions[i] = all.get(i).getLeft();
+                colors[i] = all.get(i).getRight();
+            }
+            return new Entry(CARVE, new int[] {inserted.size(), columns.size(), rows.size()}, positions, colors);
+        }
+
+        /**
+         * @param group the index of the group
+         * @return the seams of a group as positions and colors, in the order they were recorded
+         */
+        List<Pair<int[], int[]>> group(int group) {
+            int start = 0;
+            for (int g = 0; g < group; g++) {
+                start += groups[g];
+            }
+            List<Pair<int[], int[]>> seams = new ArrayList<>(groups[group]);
+            for (int i = start; i < start + groups[group]; i++) {
+                seams.add(Pair.of(positions[i], colors[i]));
+            }
+            return seams;
+        }
+
+        /**
+         * @return HIGHLIGHT, HIGHLIGHT_HORIZONTAL or CARVE
+         */
+        int getKind() {
+            return kind;
+        }
+
+        /**
+         * @return true once the highlighted seam of the entry was deleted
+         */
+        boolean isDeleted() {
+            return deleted;
+        }
+
+        /**
+         * @param deleted whether the highlighted seam of the entry was deleted
+         */
+        void setDeleted(boolean deleted) {
+            this.deleted = deleted;
+        }
+
+        /**
+         * @return the generation of the image before the edit
+         */
+        long getBefore() {
+            return before;
+        }
+
+        /**
+         * @param before the generation of the image before the edit
+         */
+        void setBefore(long before) {
+            this.before = before;
+        }
+
+        /**
+         * @return the generation of the image right after the edit
+         */
+        long getAfter() {
+            return after;
+        }
+
+        /**
+         * @param after the generation of the image right after the edit
+         */
+        void setAfter(long after) {
+            this.after = after;
+        }
+
+        /**
+         * @return how many seams each group holds, in order
+         */
+        int[] getGroups() {
+            return groups;
+        }
+
+        /**
+         * @return the positions of every seam, group after group
+         */
+        int[][] getPositions() {
+            return positions;
+        }
+
+        /**
+         * @return the colors of every seam, in the same order as getPositions
+         */
+        int[][] getColors() {
+            return colors;
+        }
+
+        /**
+         * @return roughly how many bytes of heap the entry holds
+         */
+        long bytes() {
+            long bytes = ENTRY_BYTES + 4L * groups.length;
+            for (int i = 0; i < positions.length; i++) {
+                bytes += SEAM_BYTES + 4L * positions[i].length + 4L * colors[i].length;
+            }
+            return bytes;
+        }
+    }
+
+    // The newest entries, oldest first
+    private final ArrayDeque<Entry> recent = new ArrayDeque<>();
+    private long recentBytes;
+    private long budget;
+    // The file older entries are spilled to, opened on the first spill
+    private FileChannel spill;
+    // Where each spilled entry starts, oldest first, and where the last one ends
+    private long[] spillOffsets = new long[INITIAL_SPILLS];
+    private int spilled;
+    private long spillEnd;
+    // Reused to move ints to and from the file
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+    /**
+     * Constructor that creates an empty journal
+     * @param budget how many bytes of entries to keep on the heap before spilling older ones
+     */
+    UndoJournal(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * This will change the heap budget, spilling entries right away if it shrank
+     * @param budget how many bytes of entries to keep on the heap
+     */
+    void setBudget(long budget) {
+        this.budget = budget;
+        trim();
+        report();
+    }
+
+    /**
+     * This will add an entry as the newest one
+     * @param entry the edit to remember
+     */
+    void push(Entry entry) {
+        recent.addLast(entry);
+        recentBytes += entry.bytes();
+        trim();
+        report();
+    }
+
+    /**
+     * @return the newest entry without removing it, or null if there is none on the heap
+     */
+    Entry peek() {
+        return recent.peekLast();
+    }
+
+    /**
+     * This will remove the newest entry, reading it back from the spill file if needed
+     * @return the entry, or null if the journal is empty
+     */
+    Entry pop() {
+        if (!recent.isEmpty()) {
+            Entry entry = recent.pollLast();
+            recentBytes -= entry.bytes();
+            report();
+            return entry;
+        }
+        if (spilled == 0) return null;
+        try {
+            long start = spillOffsets[--spilled];
+            Entry entry = read(start);
+            spill.truncate(start);
+            spillEnd = start;
+            report();
+            return entry;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the undo journal", e);
+        }
+    }
+
+    /**
+     * This will pass the size of the journal on to the metrics
+     */
+    private void report() {
+        Metrics.undoJournal(size(), recentBytes, spillEnd);
+    }
+
+    /**
+     * @return how many entries can be undone
+     */
+    int size() {
+        return recent.size() + spilled;
+    }
+
+    /**
+     * @return how many entries are in the spill file
+     */
+    int spilledCount() {
+        return spilled;
+    }
+
+    /**
+     * @return roughly how many bytes of heap the entries that were not spilled hold
+     */
+    long heapBytes() {
+        return recentBytes;
+    }
+
+    /**
+     * This will spill the oldest heap entries until the rest fit in the budget
+     */
+    private void trim() {
+        while (recentBytes > budget && recent.size() > 1) {
+            Entry entry = recent.pollFirst();
+            recentBytes -= entry.bytes();
+            try {
+                write(entry);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot spill the undo journal", e);
+            }
+        }
+    }
+
+    /**
+     * This will append an entry to the end of the spill file as a header followed by its seams.
+     * The header is the kind, the number of groups, the generations before and after the edit
+     * as two ints each and the size of each group; each seam is its length followed by its
+     * positions and its colors.
+     */
+    private void write(Entry entry) throws IOException {
+        if (spill == null) {
+            Path file = Files.createTempFile("seam-undo", ".journal");
+            spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        if (spilled == spillOffsets.length) {
+            spillOffsets = Arrays.copyOf(spillOffsets, spilled * 2);
+        }
+        spillOffsets[spilled++] = spillEnd;
+
+        int[] header = new int[6 + entry.groups.length];
+        header[0] = entry.kind | (entry.deleted ? DELETED_FLAG : 0);
+        header[1] = entry.groups.length;
+        header[2] = (int) (entry.before >>> Integer.SIZE);
+        header[3] = (int) entry.before;
+        header[4] = (int) (entry.after >>> Integer.SIZE);
+        header[5] = (int) entry.after;
+        System.arraycopy(entry.groups, 0, header, 6, entry.groups.length);
+        writeInts(header, null);
+        for (int i = 0; i < entry.positions.length; i++) {
+            writeInts(entry.positions[i], entry.colors[i]);
+        }
+    }
+
+    /**
+     * This will append an array to the spill file, or a length-prefixed pair of arrays
+     * @param first the array to write, or the positions of a seam
+     * @param second the colors of the seam, or null to write first on its own
+     */
+    private void writeInts(int[] first, int[] second) throws IOException {
+        int count = second == null ? first.length : 1 + first.length + second.length;
+        ByteBuffer bytes = buffer(count);
+        if (second == null) {
+            bytes.asIntBuffer().put(first);
+        } else {
+            bytes.asIntBuffer().put(first.length).put(first).put(second);
+        }
+        while (bytes.hasRemaining()) {
+            spillEnd += spill.write(bytes, spillEnd);
+        }
+    }
+
+    /**
+     * This will read back the entry that starts at an offset of the spill file
+     */
+    private Entry read(long start) throws IOException {
+        long[] position = {start};
+        int[] head = readInts(position, 6);
+        int[] groups = readInts(position, head[1]);
+        int seams = 0;
+        for (int size : groups) {
+            seams += size;
+        }
+        int[][] positions = new int[seams][];
+        int[][] colors = new int[seams][];
+        for (int i = 0; i < seams; i++) {
+            int length = readInts(position, 1)[0];
+            positions[i] = readInts(position, length);
+            colors[i] = readInts(position, length);
+        }
+        Entry entry = new Entry(head[0] & KIND_MASK, groups, positions, colors);
+        entry.deleted = (head[0] & DELETED_FLAG) != 0;
+        entry.before = ((long) head[2] << Integer.SIZE) | Integer.toUnsignedLong(head[3]);
+        entry.after = ((long) head[4] << Integer.SIZE) | Integer.toUnsignedLong(head[5]);
+        return entry;
+    }
+
+    /**
+     * This will read ints from the spill file and move the position past them
+     */
+    private int[] readInts(long[] position, int count) throws IOException {
+        ByteBuffer bytes = buffer(count);
+        while (bytes.hasRemaining()) {
+            int read = spill.read(bytes, position[0] + bytes.position());
+            if (read < 0) {
+                throw new IOException("Undo journal ended early");
+            }
+        }
+        position[0] += 4L * count;
+        bytes.flip();
+        int[] ints = new int[count];
+        bytes.asIntBuffer().get(ints);
+        return ints;
+    }
+
+    /**
+     * @return the reusable buffer cleared and limited to a number of ints
+     */
+    private ByteBuffer buffer(int ints) {
+        if (buffer.capacity() < 4 * ints) {
+            buffer = ByteBuffer.allocate(Math.max(4 * ints, 2 * buffer.capacity()));
+        }
+        buffer.clear().limit(4 * ints);
+        return buffer;
+    }
+
+    /**
+     * This will forget every entry and delete the spill file
+     */
+    @Override
+    public void close() {
+        recent.clear();
+        recentBytes = 0;
+        spilled = 0;
+        spillEnd = 0;
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                System.out.println("ERROR CLOSING UNDO JOURNAL: " + e.getMessage());
+            }
+            spill = null;
+        }
+    }
+}
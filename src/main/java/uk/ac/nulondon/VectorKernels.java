@@ -0,0 +1,207 @@
+package uk.ac.nulondon;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The VectorKernels class computes energies and the seam program several pixels per instruction
+ * with the incubating Vector API. Both kernels give exactly the results of the scalar loops in
+ * PixelStore and SeamFinder: brightness is divided by three with a multiply and shift that is
+ * exact for every sum of three channels, the squared gradients fit in a float without rounding,
+ * and a float square root matches rounding the double one. The program tries the cells above in
+ * the same order with the same strict comparisons, so ties break the same way.
+ * Only the interior of a row is vectorized; edge pixels, whose missing neighbors need special
+ * rules, are left to the scalar code. This class must only be loaded when the
+ * jdk.incubator.vector module is present, which PixelStore.VECTOR_KERNELS checks.
+ */
+final class VectorKernels {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    // ints and floats with as many lanes as DOUBLES, to widen one row of values into doubles
+    private static final VectorSpecies<Integer> NARROW_INTS =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLES.length() * 32));
+    private static final VectorSpecies<Float> NARROW_FLOATS =
+            VectorSpecies.of(float.class, VectorShape.forBitSize(DOUBLES.length() * 32));
+    // bytes for the back-pointers of one vector of cells, in the smallest shape that holds them
+    private static final VectorSpecies<Byte> STEP_BYTES =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, DOUBLES.length() * 8)));
+    // the lanes of STEP_BYTES that hold a back-pointer, the others must not be written
+    private static final VectorMask<Byte> STEP_LANES = STEP_BYTES.indexInRange(0, DOUBLES.length());
+    // bytes with as many lanes as INTS, in the smallest shape that holds them, and the lanes of it in use
+    private static final VectorSpecies<Byte> INT_BYTES =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, INTS.length() * 8)));
+    private static final VectorMask<Byte> INT_LANES = INT_BYTES.indexInRange(0, INTS.length());
+    // sum * THIRD >>> THIRD_SHIFT is sum / 3 for every sum up to 3 * 255
+    private static final int THIRD = 43691;
+    private static final int THIRD_SHIFT = 17;
+
+    // brightness of the row above, the row and the row below, per thread since stripes run in parallel
+    private static final ThreadLocal<int[][]> ROWS = ThreadLocal.withInitial(() -> new int[3][0]);
+
+    private VectorKernels() {
+    }
+
+    /**
+     * This will compute the energy of the interior pixels of a range of one row, the ones whose
+     * eight neighbors all exist, and leave the rest of the range to the caller
+     * @param store the image
+     * @param row the row to compute
+     * @param from the first column to compute
+     * @param to the last column to compute
+     * @return one past the last column computed: the columns from max(from, 1) up to it are done,
+     *         and any others of the range are left to the caller
+     */
+    static int energyRow(PixelStore store, int row, int from, int to) {
+        int up = row > 0 ? row - 1 : row;
+        int down = row < store.getHeight() - 1 ? row + 1 : row;
+        int width = Math.min(store.rowWidth(row), Math.min(store.rowWidth(up), store.rowWidth(down)));
+        int lo = Math.max(from, 1);
+        int hi = Math.min(to + 1, width - 1);
+        if (lo >= hi) return lo;
+
+        int count = hi - lo + 2;
+        int[][] rows = ROWS.get();
+        if (rows[0].length < count) {
+            for (int i = 0; i < 3; i++) {
+                rows[i] = new int[count + count / 2];
+            }
+        }
+        int[] above = rows[0];
+        int[] middle = rows[1];
+        int[] below = rows[2];
+        widen(store.luma(), store.rowOffset(up) + lo - 1, count, above);
+        widen(store.luma(), store.rowOffset(row) + lo - 1, count, middle);
+        widen(store.luma(), store.rowOffset(down) + lo - 1, count, below);
+
+        float[] energy = store.energy();
+        int offset = store.rowOffset(row) + lo;
+        int pixels = hi - lo;
+        int j = 0;
+        for (; j < INTS.loopBound(pixels); j += INTS.length()) {
+            IntVector upLeft = IntVector.fromArray(INTS, above, j);
+            IntVector upRight = IntVector.fromArray(INTS, above, j + 2);
+            IntVector downLeft = IntVector.fromArray(INTS, below, j);
+            IntVector downRight = IntVector.fromArray(INTS, below, j + 2);
+            IntVector horizontal = downLeft.add(twice(below, j + 1)).add(downRight)
+                    .sub(upLeft.add(twice(above, j + 1)).add(upRight));
+            IntVector vertical = upRight.add(twice(middle, j + 2)).add(downRight)
+                    .sub(upLeft.add(twice(middle, j)).add(downLeft));
+            IntVector squares = horizontal.mul(horizontal).add(vertical.mul(vertical));
+            ((FloatVector) squares.convertShape(VectorOperators.I2F, FLOATS, 0))
+                    .lanewise(VectorOperators.SQRT).intoArray(energy, offset + j);
+        }
+        for (; j < pixels; j++) {
+            int horizontal = below[j] + below[j + 1] * 2 + below[j + 2] - (above[j] + above[j + 1] * 2 + above[j + 2]);
+            int vertical = above[j + 2] + middle[j + 2] * 2 + below[j + 2] - (above[j] + middle[j] * 2 + below[j]);
+            energy[offset + j] = (float) Math.sqrt((double) horizontal * horizontal + (double) vertical * vertical);
+        }
+        return hi;
+    }
+
+    /**
+     * @return twice the brightness values starting at an index
+     */
+    private static IntVector twice(int[] brightness, int index) {
+        return IntVector.fromArray(INTS, brightness, index).lanewise(VectorOperators.LSHL, 1);
+    }
+
+    /**
+     * This will average the channels of a run of packed colors into a brightness plane
+     * @param rgb the packed colors
+     * @param start the index of the first color
+     * @param count how many colors to read
+     * @param into where to write the brightness of each color as an unsigned byte
+     * @param intoStart the index of into to write the first brightness at
+     */
+    static void brightness(int[] rgb, int start, int count, byte[] into, int intoStart) {
+        int i = 0;
+        for (; i < INTS.loopBound(count); i += INTS.length()) {
+            IntVector color = IntVector.fromArray(INTS, rgb, start + i);
+            IntVector sum = color.lanewise(VectorOperators.LSHR, PixelStore.RED_SHIFT).and(PixelStore.CHANNEL_MASK)
+                    .add(color.lanewise(VectorOperators.LSHR, PixelStore.GREEN_SHIFT).and(PixelStore.CHANNEL_MASK))
+                    .add(color.and(PixelStore.CHANNEL_MASK));
+            ((ByteVector) sum.mul(THIRD).lanewise(VectorOperators.LSHR, THIRD_SHIFT)
+                    .convertShape(VectorOperators.I2B, INT_BYTES, 0)).intoArray(into, intoStart + i, INT_LANES);
+        }
+        for (; i < count; i++) {
+            into[intoStart + i] = PixelStore.brightnessOf(rgb[start + i]);
+        }
+    }
+
+    /**
+     * This will copy a run of a brightness plane into ints
+     * @param luma the brightness plane
+     * @param start the index of the first value
+     * @param count how many values to copy
+     * @param into where to write them, from index 0
+     */
+    static void widen(byte[] luma, int start, int count, int[] into) {
+        int i = 0;
+        for (; i < INTS.loopBound(count); i += INTS.length()) {
+            ((IntVector) ByteVector.fromArray(INT_BYTES, luma, start + i, INT_LANES)
+                    .convertShape(VectorOperators.B2I, INTS, 0)).and(PixelStore.CHANNEL_MASK).intoArray(into, i);
+        }
+        for (; i < count; i++) {
+            into[i] = luma[start + i] & PixelStore.CHANNEL_MASK;
+        }
+    }
+
+    /**
+     * This will run one row of the seam program over whole vectors of interior cells, those with
+     * a cell above on both sides, reading each cell's value straight from one row of the store.
+     * Every array and index is passed on its own, so the loop does not load them through an object.
+     * @param previous the values of the row above
+     * @param current where the values of this row are written
+     * @param base the column stored at index 0 of previous and current
+     * @param from the first column to compute, at least 1
+     * @param to one past the last column that may be computed, at most the width minus 1
+     * @param values the store's packed colors for blue seams, or null for energy seams
+     * @param energy the store's energies
+     * @param offset the index of column 0 of the row in values or energy
+     * @param isBlue true to keep the greatest value, false to keep the smallest
+     * @param steps where to write the back-pointers, or null to skip them
+     * @param stepBase the index of column 0 of the row in steps
+     * @return one past the last column computed; the columns from there to to are left to the caller
+     */
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    static int relaxRow(double[] previous, double[] current, int base, int from, int to, int[] values,
+                        float[] energy, int offset, boolean isBlue, byte[] steps, int stepBase) {
+        int lanes = DOUBLES.length();
+        int index = from;
+        for (; index + lanes <= to; index += lanes) {
+            int i = index - base;
+            DoubleVector best = DoubleVector.fromArray(DOUBLES, previous, i);
+            DoubleVector left = DoubleVector.fromArray(DOUBLES, previous, i - 1);
+            // each comparison is spelled out, one held in a variable is not compiled to vector code
+            VectorMask<Double> fromLeft = isBlue ? left.compare(VectorOperators.GT, best)
+                    : left.compare(VectorOperators.LT, best);
+            best = best.blend(left, fromLeft);
+            DoubleVector right = DoubleVector.fromArray(DOUBLES, previous, i + 1);
+            VectorMask<Double> fromRight = isBlue ? right.compare(VectorOperators.GT, best)
+                    : right.compare(VectorOperators.LT, best);
+            best = best.blend(right, fromRight);
+
+            DoubleVector value = values != null
+                    ? (DoubleVector) IntVector.fromArray(NARROW_INTS, values, offset + index)
+                            .and(PixelStore.CHANNEL_MASK).convertShape(VectorOperators.I2D, DOUBLES, 0)
+                    : (DoubleVector) FloatVector.fromArray(NARROW_FLOATS, energy, offset + index)
+                            .convertShape(VectorOperators.F2D, DOUBLES, 0);
+            best.add(value).intoArray(current, i);
+
+            if (steps != null) {
+                IntVector step = IntVector.zero(NARROW_INTS).blend(-1, fromLeft.cast(NARROW_INTS))
+                        .blend(1, fromRight.cast(NARROW_INTS));
+                ((ByteVector) step.convertShape(VectorOperators.I2B, STEP_BYTES, 0))
+                        .intoArray(steps, stepBase + index, STEP_LANES);
+            }
+        }
+        return index;
+    }
+}
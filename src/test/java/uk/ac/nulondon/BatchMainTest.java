@@ -0,0 +1,150 @@
+package uk.ac.nulondon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests the headless BatchMain entry point on small generated images.
+ */
+public class BatchMainTest {
+
+    /**
+     * Writes a random image to a file.
+     */
+    static File writeImage(Path dir, String name, int width, int height) throws IOException {
+        Random random = new Random(name.hashCode());
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt(1 << 24));
+            }
+        }
+        File file = dir.resolve(name).toFile();
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+
+    /**
+     * Tests that every image of a directory is carved to the same target size.
+     */
+    @Test
+    void directoryBatchShouldCarveEveryImage(@TempDir Path dir) throws Exception {
+        Path input = Files.createDirectory(dir.resolve("in"));
+        writeImage(input, "a.png", 20, 15);
+        writeImage(input, "b.png", 18, 16);
+        Files.writeString(input.resolve("notes.txt"), "not an image");
+        File output = Files.createDirectory(dir.resolve("out")).toFile();
+
+        List<BatchMain.Job> jobs = BatchMain.directoryJobs(input.toFile(), output, 12, 10, OutputFormat.PNG);
+        assertThat(jobs).hasSize(2);
+        String summary = new BatchMain(2).run(jobs);
+
+        assertThat(summary).startsWith("2 images (0 failed)");
+        for (String name : new String[] {"a_12x10.png", "b_12x10.png"}) {
+            BufferedImage result = ImageIO.read(new File(output, name));
+            assertThat(result.getWidth()).isEqualTo(12);
+            assertThat(result.getHeight()).isEqualTo(10);
+        }
+    }
+
+    /**
+     * Tests that a batch only keeps images in the shared cache when the same input is carved more than once.
+     */
+    @Test
+    void onlyRepeatedInputsShouldBeCached(@TempDir Path dir) throws Exception {
+        ImageCache cache = ImageCache.shared();
+        cache.clear();
+        File a = writeImage(dir, "a.png", 20, 15);
+        File b = writeImage(dir, "b.png", 18, 16);
+        File output = Files.createDirectory(dir.resolve("out")).toFile();
+
+        new BatchMain(2).run(List.of(
+                new BatchMain.Job(a.getPath(), new File(output, "a.png").getPath(), 12, 10, OutputFormat.PNG),
+                new BatchMain.Job(b.getPath(), new File(output, "b.png").getPath(), 12, 10, OutputFormat.PNG)));
+        assertThat(cache.size()).isZero();
+
+        long hits = cache.hits();
+        new BatchMain(1).run(List.of(
+                new BatchMain.Job(a.getPath(), new File(output, "a1.png").getPath(), 12, 10, OutputFormat.PNG),
+                new BatchMain.Job(a.getPath(), new File(output, "a2.png").getPath(), 10, 8, OutputFormat.PNG)));
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.hits()).isEqualTo(hits + 1);
+        cache.clear();
+    }
+
+    /**
+     * Tests that a manifest gives each image its own target size and that bad images are counted as failures.
+     */
+    @Test
+    void manifestBatchShouldUsePerImageSizes(@TempDir Path dir) throws Exception {
+        File a = writeImage(dir, "a.png", 20, 15);
+        Path manifest = dir.resolve("manifest.txt");
+        Files.writeString(manifest, "# images\n" + a + " 25 9\n\n" + dir.resolve("missing.png") + " 5 5\n");
+        File output = Files.createDirectory(dir.resolve("out")).toFile();
+
+        String summary = new BatchMain(1).run(BatchMain.manifestJobs(manifest, output, OutputFormat.PNG));
+
+        assertThat(summary).startsWith("1 images (1 failed)");
+        BufferedImage result = ImageIO.read(new File(output, "a_25x9.png"));
+        assertThat(result.getWidth()).isEqualTo(25);
+        assertThat(result.getHeight()).isEqualTo(9);
+    }
+
+    /**
+     * Tests that one input carved to several sizes gets a file per size, that a manifest line can name its
+     * output and that two images written to the same file are refused.
+     */
+    @Test
+    void repeatedInputsShouldGetAFilePerSize(@TempDir Path dir) throws Exception {
+        File a = writeImage(dir, "a.png", 20, 15);
+        File other = writeImage(Files.createDirectory(dir.resolve("other")), "a.png", 18, 16);
+        Path manifest = dir.resolve("manifest.txt");
+        Files.writeString(manifest, a + " 12 10\n" + a + " 25 9\n" + other + " 12 10 other-a.bmp\n");
+        File output = Files.createDirectory(dir.resolve("out")).toFile();
+
+        String summary = new BatchMain(2).run(BatchMain.manifestJobs(manifest, output, OutputFormat.BMP));
+
+        assertThat(summary).startsWith("3 images (0 failed)");
+        assertThat(ImageIO.read(new File(output, "a_12x10.bmp")).getWidth()).isEqualTo(12);
+        assertThat(ImageIO.read(new File(output, "a_25x9.bmp")).getWidth()).isEqualTo(25);
+        assertThat(ImageIO.read(new File(output, "other-a.bmp")).getHeight()).isEqualTo(10);
+
+        Files.writeString(manifest, a + " 12 10\n" + other + " 12 10\n");
+        assertThatThrownBy(() -> BatchMain.manifestJobs(manifest, output, OutputFormat.PNG))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("a_12x10.png");
+    }
+
+    /**
+     * Tests that images over the heap limit are carved through a mapped store and that they can only be narrowed.
+     */
+    @Test
+    void largeImagesShouldBeCarvedOutOfCore(@TempDir Path dir) throws Exception {
+        File a = writeImage(dir, "a.png", 40, 12);
+        File b = writeImage(dir, "b.png", 30, 12);
+        Path manifest = dir.resolve("manifest.txt");
+        Files.writeString(manifest, a + " 31 12\n" + b + " 30 10\n");
+        File output = Files.createDirectory(dir.resolve("out")).toFile();
+
+        BatchMain batch = new BatchMain(1);
+        batch.setMappedPixels(0);
+        String summary = batch.run(BatchMain.manifestJobs(manifest, output, OutputFormat.PNG));
+
+        assertThat(summary).startsWith("1 images (1 failed)");
+        BufferedImage result = ImageIO.read(new File(output, "a_31x12.png"));
+        assertThat(result.getWidth()).isEqualTo(31);
+        assertThat(result.getHeight()).isEqualTo(12);
+    }
+}
@@ -0,0 +1,139 @@
+package uk.ac.nulondon;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the CarvingServer endpoints over a real socket.
+ */
+public class CarvingServerTest {
+    private final HttpClient client = HttpClient.newHttpClient();
+    private CarvingServer server;
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) server.stop();
+    }
+
+    /**
+     * Sends a request and returns the response body as bytes.
+     */
+    private HttpResponse<byte[]> send(String method, String path, File body) throws Exception {
+        HttpRequest.BodyPublisher publisher = body == null
+                ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofFile(body.toPath());
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + path))
+                .method(method, publisher).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static String text(HttpResponse<byte[]> response) {
+        return new String(response.body()).trim();
+    }
+
+    /**
+     * Tests uploading an image, removing columns and rows, undoing and downloading the result.
+     */
+    @Test
+    void sessionShouldCarveUndoAndDownload(@TempDir Path dir) throws Exception {
+        server = new CarvingServer(0, 2, 60_000);
+        server.start();
+        File image = BatchMainTest.writeImage(dir, "a.png", 30, 20);
+
+        HttpResponse<byte[]> created = send("POST", "/sessions", image);
+        assertThat(created.statusCode()).isEqualTo(201);
+        String id = text(created);
+
+        assertThat(text(send("POST", "/sessions/" + id + "/seams?mode=r&count=4", null))).isEqualTo("26 20");
+        assertThat(text(send("POST", "/sessions/" + id + "/seams?mode=c", null))).isEqualTo("25 20");
+        assertThat(text(send("POST", "/sessions/" + id + "/seams?mode=b&count=2&direction=row", null)))
+                .isEqualTo("25 18");
+        assertThat(text(send("POST", "/sessions/" + id + "/undo?count=3", null))).isEqualTo("26 20");
+
+        HttpResponse<byte[]> downloaded = send("GET", "/sessions/" + id + "/image?format=bmp", null);
+        assertThat(downloaded.statusCode()).isEqualTo(200);
+        BufferedImage result = ImageIO.read(new ByteArrayInputStream(downloaded.body()));
+        assertThat(result.getWidth()).isEqualTo(26);
+        assertThat(result.getHeight()).isEqualTo(20);
+
+        assertThat(send("DELETE", "/sessions/" + id, null).statusCode()).isEqualTo(200);
+        assertThat(send("POST", "/sessions/" + id + "/undo", null).statusCode()).isEqualTo(404);
+    }
+
+    /**
+     * Tests that bad requests are answered with a status code instead of failing the server.
+     */
+    @Test
+    void badRequestsShouldGetErrors(@TempDir Path dir) throws Exception {
+        server = new CarvingServer(0, 1, 60_000);
+        server.start();
+        File notAnImage = dir.resolve("notes.txt").toFile();
+        Files.writeString(notAnImage.toPath(), "not an image");
+        assertThat(send("POST", "/sessions", notAnImage).statusCode()).isEqualTo(400);
+        assertThat(server.sessionCount()).isZero();
+
+        String id = text(send("POST", "/sessions", BatchMainTest.writeImage(dir, "b.png", 10, 8)));
+        assertThat(send("POST", "/sessions/" + id + "/seams?mode=x", null).statusCode()).isEqualTo(400);
+        assertThat(send("POST", "/sessions/" + id + "/seams?count=10", null).statusCode()).isEqualTo(400);
+        assertThat(send("POST", "/sessions/" + id + "/undo?count=1", null).statusCode()).isEqualTo(400);
+        assertThat(send("GET", "/sessions/" + id + "/seams", null).statusCode()).isEqualTo(405);
+        assertThat(send("GET", "/sessions/missing/image", null).statusCode()).isEqualTo(404);
+    }
+
+    /**
+     * Tests that many sessions carving at once each get their own image, with only one job running at a time.
+     */
+    @Test
+    void concurrentSessionsShouldStayApart(@TempDir Path dir) throws Exception {
+        server = new CarvingServer(0, 1, 60_000);
+        server.start();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            File image = BatchMainTest.writeImage(dir, "c" + i + ".png", 20 + i, 12);
+            int seams = i + 1;
+            results.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    String id = text(send("POST", "/sessions", image));
+                    return text(send("POST", "/sessions/" + id + "/seams?mode=r&count=" + seams, null));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        for (CompletableFuture<String> result : results) {
+            assertThat(result.get()).isEqualTo("19 12");
+        }
+        assertThat(server.sessionCount()).isEqualTo(8);
+        assertThat(server.peakJobs()).isEqualTo(1);
+    }
+
+    /**
+     * Tests that sessions without requests for longer than the idle time are closed.
+     */
+    @Test
+    void idleSessionsShouldBeEvicted(@TempDir Path dir) throws Exception {
+        server = new CarvingServer(0, 1, 50);
+        server.start();
+        String id = text(send("POST", "/sessions", BatchMainTest.writeImage(dir, "d.png", 10, 8)));
+        Thread.sleep(300);
+        server.evictIdle();
+        assertThat(server.hasSession(id)).isFalse();
+        assertThat(send("GET", "/sessions/" + id + "/image", null).statusCode()).isEqualTo(404);
+    }
+}
@@ -0,0 +1,137 @@
+package uk.ac.nulondon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the FrameCarver class on generated frames of a scene panning sideways.
+ */
+public class FrameCarverTest {
+
+    /**
+     * Draws one frame of a random scene moved right by some pixels.
+     */
+    private static BufferedImage frame(int width, int height, int shift) {
+        Random random = new Random(7);
+        int[] scene = new int[(width + 64) * height];
+        for (int i = 0; i < scene.length; i++) {
+            scene[i] = random.nextInt(1 << 24);
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, scene[y * (width + 64) + x + 32 - shift]);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Tests that a band as wide as the image finds the same seam as the full program.
+     */
+    @Test
+    void refineWithWideBandShouldMatchExactSeam() {
+        PixelStore store = PixelStoreTest.randomStore(40, 30, 70);
+        store.computeEnergy();
+        int[] guide = new int[30];
+        PyramidSeamFinder finder = new PyramidSeamFinder(false, false, 1, 1);
+        assertThat(finder.refine(store, guide, null, 40)).containsExactly(new SeamFinder(false).find(store, null));
+    }
+
+    /**
+     * Tests that seams removed one at a time, mapped back to the columns of the whole frame and
+     * removed all at once, leave exactly the same pixels.
+     */
+    @Test
+    void removingSeamsAtOnceShouldMatchOneAtATime() {
+        PixelStore oneByOne = PixelStoreTest.randomStore(50, 30, 71);
+        PixelStore atOnce = oneByOne.copy();
+        SeamFinder finder = new SeamFinder(false);
+        int[][] seams = new int[12][];
+        for (int i = 0; i < seams.length; i++) {
+            oneByOne.refreshEnergy();
+            seams[i] = finder.find(oneByOne, null);
+            oneByOne.removeSeam(seams[i]);
+        }
+        atOnce.removeSeams(FrameCarver.originalColumns(seams));
+        assertThat(atOnce.getWidth()).isEqualTo(38);
+        for (int y = 0; y < 30; y++) {
+            for (int x = 0; x < 38; x++) {
+                assertThat(atOnce.getRgb(y, x)).isEqualTo(oneByOne.getRgb(y, x));
+                assertThat(atOnce.brightness(y, x)).isEqualTo(oneByOne.brightness(y, x));
+            }
+        }
+        atOnce.refreshEnergy();
+        oneByOne.computeEnergy();
+        assertThat(atOnce.getEnergy(10, 10)).isEqualTo(oneByOne.getEnergy(10, 10));
+    }
+
+    /**
+     * Tests that seams between keyframes stay inside the band around the previous frame's seams,
+     * and that keyframes come back at the set interval.
+     */
+    @Test
+    void seamsShouldStayNearPreviousFrame() {
+        FrameCarver carver = new FrameCarver(50, 3, 4);
+        int[][] previous = null;
+        boolean previousSeeded = false;
+        for (int t = 0; t < 10; t++) {
+            PixelStore store = PixelStore.fromImage(frame(60, 40, t));
+            int keyframes = carver.getKeyframes();
+            int[][] seams = carver.carve(store);
+            assertThat(store.getWidth()).isEqualTo(50);
+            boolean seeded = carver.getKeyframes() == keyframes;
+            // seams of a keyframe can jump between rows once mapped to the whole frame, which widens the band
+            if (seeded && previousSeeded) {
+                for (int i = 0; i < seams.length; i++) {
+                    for (int y = 0; y < 40; y++) {
+                        assertThat(Math.abs(seams[i][y] - previous[i][y])).isLessThanOrEqualTo(3);
+                    }
+                }
+            }
+            previous = seams;
+            previousSeeded = seeded;
+        }
+        assertThat(carver.getKeyframes()).isBetween(3, 5);
+
+        int keyframes = carver.getKeyframes();
+        carver.carve(PixelStore.fromImage(frame(70, 40, 0)));
+        assertThat(carver.getKeyframes()).isEqualTo(keyframes + 1);
+    }
+
+    /**
+     * Tests that a whole directory of frames is written in order at the target width, and that a
+     * frame that cannot be read is reported without stopping the others.
+     */
+    @Test
+    void runShouldWriteEveryFrame(@TempDir Path dir) throws Exception {
+        Path input = Files.createDirectory(dir.resolve("in"));
+        for (int t = 0; t < 12; t++) {
+            ImageIO.write(frame(48, 32, t), "png", input.resolve("frame" + t + ".png").toFile());
+        }
+        Files.writeString(input.resolve("frame12.png"), "not an image");
+        File output = Files.createDirectory(dir.resolve("out")).toFile();
+
+        List<File> frames = FrameCarver.frames(input.toFile());
+        assertThat(frames.get(9).getName()).isEqualTo("frame9.png");
+        assertThat(frames.get(10).getName()).isEqualTo("frame10.png");
+        String summary = new FrameCarver(40, 4, 5).run(frames, output, OutputFormat.png(1), 2);
+
+        assertThat(summary).startsWith("12 frames (1 failed, 3 keyframes)");
+        for (int t = 0; t < 12; t++) {
+            BufferedImage result = ImageIO.read(new File(output, "frame" + t + ".png"));
+            assertThat(result.getWidth()).isEqualTo(40);
+            assertThat(result.getHeight()).isEqualTo(32);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package uk.ac.nulondon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the ImageCache class on small generated images.
+ */
+public class ImageCacheTest {
+
+    /**
+     * Tests that a second load is a hit, and that editing one working copy changes neither the
+     * cached image nor the other copies.
+     */
+    @Test
+    void loadShouldReuseDecodedImage(@TempDir Path dir) throws Exception {
+        ImageCache cache = new ImageCache(1 << 20);
+        File file = BatchMainTest.writeImage(dir, "a.png", 20, 15);
+        PixelStore first = cache.load(file);
+        PixelStore expected = first.copy();
+        PixelStore second = cache.load(file);
+        assertThat(cache.hits()).isEqualTo(1);
+        assertThat(cache.misses()).isEqualTo(1);
+
+        int[] columns = new int[15];
+        first.removeSeam(columns);
+        first.setRgb(2, 3, 0x445566);
+        assertThat(second.rgb()).containsExactly(expected.rgb());
+        assertThat(cache.load(file).rgb()).containsExactly(expected.rgb());
+    }
+
+    /**
+     * Tests that a file written again is decoded again.
+     */
+    @Test
+    void changedFileShouldBeDecodedAgain(@TempDir Path dir) throws Exception {
+        ImageCache cache = new ImageCache(1 << 20);
+        File file = BatchMainTest.writeImage(dir, "b.png", 20, 15);
+        cache.load(file);
+        File rewritten = BatchMainTest.writeImage(dir, "b.png", 12, 15);
+        rewritten.setLastModified(file.lastModified() + 2000);
+        assertThat(cache.load(rewritten).getWidth()).isEqualTo(12);
+        assertThat(cache.misses()).isEqualTo(2);
+    }
+
+    /**
+     * Tests that the least recently used images are dropped to stay within the budget, and that
+     * an image larger than the whole budget is not kept.
+     */
+    @Test
+    void budgetShouldEvictLeastRecentlyUsed(@TempDir Path dir) throws Exception {
+        File a = BatchMainTest.writeImage(dir, "a.png", 10, 10);
+        File b = BatchMainTest.writeImage(dir, "b.png", 10, 10);
+        File c = BatchMainTest.writeImage(dir, "c.png", 10, 10);
+        long one = ImageData.decode(a).planeBytes();
+        ImageCache cache = new ImageCache(one * 2);
+        cache.load(a);
+        cache.load(b);
+        cache.load(a);
+        cache.load(c);
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.bytes()).isLessThanOrEqualTo(one * 2);
+        cache.load(a);
+        assertThat(cache.hits()).isEqualTo(2);
+        cache.load(b);
+        assertThat(cache.hits()).isEqualTo(2);
+
+        cache.load(BatchMainTest.writeImage(dir, "large.png", 30, 30));
+        assertThat(cache.size()).isEqualTo(2);
+    }
+
+    /**
+     * Tests that threads loading the same file at once all get the same pixels from one decode.
+     */
+    @Test
+    void concurrentLoadsShouldShareOneDecode(@TempDir Path dir) throws Exception {
+        ImageCache cache = new ImageCache(1 << 22);
+        File file = BatchMainTest.writeImage(dir, "d.png", 200, 150);
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        List<Future<PixelStore>> loads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            loads.add(workers.submit(() -> cache.load(file)));
+        }
+        PixelStore expected = ImageData.decode(file);
+        for (Future<PixelStore> load : loads) {
+            PixelStore store = load.get();
+            store.setRgb(0, 0, 0);
+            assertThat(store.getRgb(1, 1)).isEqualTo(expected.getRgb(1, 1));
+        }
+        workers.shutdown();
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.load(file).getRgb(0, 0)).isEqualTo(expected.getRgb(0, 0));
+    }
+}
@@ -3,7 +3,11 @@ package uk.ac.nulondon;
 import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import static org.assertj.core.api.Assertions.assertThat;
 
 /**
@@ -109,4 +113,359 @@ public class ImageDataTest {
         assertThat(maxIndex).isEqualTo(0);
         assertThat(minIndex).isEqualTo(0);
     }
+
+    /**
+     * Tests that a seam found on the pixel store can be deleted and undone through ImageEdit.
+     * Verifies that the width shrinks by one and the original colors come back after undo.
+     */
+    @Test
+    public void testDeleteAndUndoSeamOnStore() {
+        ImageEdit imageEdit = new ImageEdit();
+        imageEdit.imageData.pixels().addAll(PixelStoreTest.randomGraph(6, 5, 4));
+        PixelStore store = imageEdit.imageData.store();
+        int[] before = store.rgb().clone();
+
+        List<Pixel> seam = imageEdit.highlightColumn("r");
+        assertThat(seam).hasSize(5).allMatch(p -> p.getRed() == 255 && p.getGreen() == 0 && p.getBlue() == 0);
+        imageEdit.deleteColumn(seam);
+        assertThat(imageEdit.imageData.getWidth()).isEqualTo(5);
+
+        imageEdit.undo();
+        assertThat(imageEdit.imageData.getWidth()).isEqualTo(6);
+        assertThat(store.rgb()).containsExactly(before);
+    }
+
+    /**
+     * Tests that findSeam builds the store from a pixel graph on first use and returns an empty
+     * seam when there is no image.
+     */
+    @Test
+    public void testFindSeamWithoutStore() {
+        ImageData graph = new ImageData();
+        graph.pixels().addAll(PixelStoreTest.randomGraph(8, 6, 3));
+        assertThat(graph.findSeam(false)).hasSize(6);
+        assertThat(graph.findSeam(true, true)).hasSize(8);
+
+        ImageData empty = new ImageData();
+        assertThat(empty.findSeam(false)).isEmpty();
+        assertThat(empty.findSeam(true, true)).isEmpty();
+        assertThat(empty.carveColumns(3)).isEmpty();
+        assertThat(empty.insertColumns(3)).isEmpty();
+    }
+
+    /**
+     * Finds a seam the way getSeam originally did, by copying the whole path into every cell.
+     */
+    static int[] referenceSeam(PixelStore store, boolean isBlue) {
+        int width = store.getWidth();
+        double[] previous = new double[width];
+        int[][] paths = new int[width][];
+        for (int x = 0; x < width; x++) {
+            previous[x] = isBlue ? store.getRgb(0, x) & 0xff : store.getEnergy(0, x);
+            paths[x] = new int[] {x};
+        }
+        for (int y = 1; y < store.getHeight(); y++) {
+            double[] current = new double[width];
+            int[][] currentPaths = new int[width][];
+            for (int x = 0; x < width; x++) {
+                double best = previous[x];
+                int ref = x;
+                if (x > 0 && (isBlue ? previous[x - 1] > best : previous[x - 1] < best)) {
+                    best = previous[x - 1];
+                    ref = x - 1;
+                }
+                if (x < width - 1 && (isBlue ? previous[x + 1] > best : previous[x + 1] < best)) {
+                    best = previous[x + 1];
+                    ref = x + 1;
+                }
+                current[x] = best + (isBlue ? store.getRgb(y, x) & 0xff : store.getEnergy(y, x));
+                currentPaths[x] = Arrays.copyOf(paths[ref], y + 1);
+                currentPaths[x][y] = x;
+            }
+            previous = current;
+            paths = currentPaths;
+        }
+        return paths[new ImageData().getMaxOrMinIndex(previous, isBlue)];
+    }
+
+    /**
+     * Tests that the back-pointer seam search returns the same seam as copying paths, in both modes.
+     */
+    @Test
+    public void testFindSeamMatchesPathCopying() {
+        for (long seed = 0; seed < 20; seed++) {
+            ImageData imageData = new ImageData();
+            imageData.pixels().addAll(PixelStoreTest.randomGraph(12, 9, seed));
+            PixelStore store = imageData.store();
+            store.computeEnergy();
+            assertThat(imageData.findSeam(true)).containsExactly(referenceSeam(store, true));
+            assertThat(imageData.findSeam(false)).containsExactly(referenceSeam(store, false));
+        }
+    }
+
+    /**
+     * Tests that splitting the seam search across a pool returns the same seam as one thread.
+     */
+    @Test
+    public void testParallelSeamMatchesSequential() {
+        PixelStore store = PixelStoreTest.randomStore(1100, 300, 7);
+        store.computeEnergy();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (boolean isBlue : new boolean[] {true, false}) {
+                SeamFinder finder = new SeamFinder(isBlue);
+                int[] sequential = finder.find(store, null);
+                assertThat(finder.find(store, pool)).containsExactly(sequential);
+                assertThat(sequential).containsExactly(referenceSeam(store, isBlue));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Tests that carveTo removes the same seams as deleting them one by one, and that a single
+     * undo brings the whole batch back.
+     */
+    @Test
+    public void testCarveToMatchesOneSeamAtATime() {
+        ImageEdit batch = new ImageEdit();
+        batch.imageData.pixels().addAll(PixelStoreTest.randomGraph(20, 12, 8));
+        int[] before = batch.imageData.store().rgb().clone();
+        ImageEdit single = new ImageEdit();
+        single.imageData.setStore(batch.imageData.store().copy());
+
+        batch.carveTo(14, 12);
+        for (int i = 0; i < 6; i++) {
+            single.deleteColumn(single.imageData.getSeam(false));
+        }
+        assertThat(batch.imageData.getWidth()).isEqualTo(14);
+        assertThat(batch.editCount()).isEqualTo(1);
+        for (int y = 0; y < 12; y++) {
+            for (int x = 0; x < 14; x++) {
+                assertThat(batch.imageData.store().getRgb(y, x)).isEqualTo(single.imageData.store().getRgb(y, x));
+            }
+        }
+
+        batch.undo();
+        assertThat(batch.imageData.getWidth()).isEqualTo(20);
+        assertThat(batch.imageData.store().rgb()).containsExactly(before);
+    }
+
+    /**
+     * Tests that a horizontal seam found on the transposed view is the vertical seam of a rotated copy.
+     */
+    @Test
+    public void testHorizontalSeamMatchesTransposedImage() {
+        PixelStore store = PixelStoreTest.randomStore(15, 10, 10);
+        store.computeEnergy();
+        PixelStore rotated = new PixelStore(10, 15);
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 15; x++) {
+                rotated.setRgb(x, y, store.getRgb(y, x));
+                rotated.setEnergy(x, y, store.getEnergy(y, x));
+            }
+        }
+        for (boolean isBlue : new boolean[] {true, false}) {
+            assertThat(new SeamFinder(isBlue, true).find(store, null))
+                    .containsExactly(new SeamFinder(isBlue).find(rotated, null));
+        }
+    }
+
+    /**
+     * Tests that carveTo can shrink both dimensions and a single undo restores the image.
+     */
+    @Test
+    public void testCarveToBothDimensions() {
+        ImageEdit imageEdit = new ImageEdit();
+        imageEdit.imageData.setStore(PixelStoreTest.randomStore(16, 12, 11));
+        int[] before = imageEdit.imageData.store().rgb().clone();
+
+        imageEdit.carveTo(11, 8);
+        assertThat(imageEdit.imageData.getWidth()).isEqualTo(11);
+        assertThat(imageEdit.imageData.getHeight()).isEqualTo(8);
+
+        imageEdit.undo();
+        assertThat(imageEdit.imageData.getWidth()).isEqualTo(16);
+        assertThat(imageEdit.imageData.getHeight()).isEqualTo(12);
+        assertThat(imageEdit.imageData.store().rgb()).containsExactly(before);
+    }
+
+    /**
+     * Tests that a highlighted row can be deleted and undone.
+     */
+    @Test
+    public void testDeleteAndUndoRow() {
+        ImageEdit imageEdit = new ImageEdit();
+        imageEdit.imageData.setStore(PixelStoreTest.randomStore(9, 7, 12));
+        int[] before = imageEdit.imageData.store().rgb().clone();
+
+        List<Pixel> row = imageEdit.highlightRow("b");
+        assertThat(row).hasSize(9).allMatch(p -> p.getBlue() == 255 && p.getRed() == 0);
+        imageEdit.deleteRow(row);
+        assertThat(imageEdit.imageData.getHeight()).isEqualTo(6);
+
+        imageEdit.undo();
+        assertThat(imageEdit.imageData.getHeight()).isEqualTo(7);
+        assertThat(imageEdit.imageData.store().rgb()).containsExactly(before);
+    }
+
+    /**
+     * Tests that several seams found in one pass start with the best seam and never share a pixel.
+     */
+    @Test
+    public void testFindSeamsAreDisjoint() {
+        PixelStore store = PixelStoreTest.randomStore(30, 20, 13);
+        store.computeEnergy();
+        SeamFinder finder = new SeamFinder(false);
+        int[][] seams = finder.findSeams(store, null, 10);
+        assertThat(seams.length).isEqualTo(10);
+        assertThat(seams[0]).containsExactly(finder.find(store, null));
+        for (int y = 0; y < 20; y++) {
+            Set<Integer> columns = new HashSet<>();
+            for (int[] seam : seams) {
+                assertThat(columns.add(seam[y])).isTrue();
+                if (y > 0) {
+                    assertThat(Math.abs(seam[y] - seam[y - 1])).isLessThanOrEqualTo(1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that carveTo can widen the image with averaged pixels and a single undo removes them.
+     */
+    @Test
+    public void testCarveToEnlargesAndUndoes() {
+        ImageEdit imageEdit = new ImageEdit();
+        imageEdit.imageData.setStore(PixelStoreTest.randomStore(10, 6, 14));
+        PixelStore original = imageEdit.imageData.store().copy();
+
+        imageEdit.carveTo(25, 6);
+        PixelStore store = imageEdit.imageData.store();
+        assertThat(store.getWidth()).isEqualTo(25);
+        for (int y = 0; y < 6; y++) {
+            // every original pixel is still there, in order, with new pixels between them
+            int x = 0;
+            for (int i = 0; i < 25 && x < 10; i++) {
+                if (store.getRgb(y, i) == original.getRgb(y, x)) x++;
+            }
+            assertThat(x).isEqualTo(10);
+        }
+
+        imageEdit.undo();
+        assertThat(store.getWidth()).isEqualTo(10);
+        for (int y = 0; y < 6; y++) {
+            for (int x = 0; x < 10; x++) {
+                assertThat(store.getRgb(y, x)).isEqualTo(original.getRgb(y, x));
+            }
+        }
+    }
+
+    /**
+     * Tests that the pyramid search finds the exact seam when its band covers the whole image,
+     * and that a narrow band gives a valid seam whose drift can be measured.
+     */
+    @Test
+    public void testPyramidSeamSearch() {
+        ImageData imageData = new ImageData();
+        imageData.setStore(PixelStoreTest.randomStore(90, 70, 50));
+        int[] exact = imageData.findSeam(false);
+        int[] exactRow = imageData.findSeam(true, true);
+
+        imageData.setPyramid(2, 200);
+        assertThat(imageData.findSeam(false)).containsExactly(exact);
+        assertThat(imageData.findSeam(true, true)).containsExactly(exactRow);
+        assertThat(imageData.seamDrift(false, false).getLeft()).isZero();
+
+        imageData.setPyramid(3, 2);
+        int[] seam = imageData.findSeam(false);
+        assertThat(seam).hasSize(70);
+        for (int row = 1; row < seam.length; row++) {
+            assertThat(Math.abs(seam[row] - seam[row - 1])).isLessThanOrEqualTo(1);
+        }
+        assertThat(imageData.seamDrift(false, false).getRight()).isGreaterThanOrEqualTo(0.0);
+
+        imageData.carveColumns(5);
+        assertThat(imageData.getWidth()).isEqualTo(85);
+    }
+
+    /**
+     * Tests that cancelling a highlight brings back the generation it was found on, so the same seam
+     * and the same energies are reused, while an edit outside the history forces a new search.
+     */
+    @Test
+    public void testCancelReusesCachedSeam() {
+        ImageEdit imageEdit = new ImageEdit();
+        ImageData imageData = imageEdit.imageData;
+        imageData.setStore(PixelStoreTest.randomStore(40, 30, 51));
+        long generation = imageData.getGeneration();
+        int[] seam = imageData.findSeam(false);
+
+        for (int i = 0; i < 3; i++) {
+            imageEdit.highlightColumn("r");
+            assertThat(imageData.getGeneration()).isNotEqualTo(generation);
+            imageEdit.undo();
+            assertThat(imageData.getGeneration()).isEqualTo(generation);
+            for (int y = 0; y < 30; y++) {
+                assertThat(imageData.store().isDirty(y)).isFalse();
+            }
+            assertThat(imageData.findSeam(false)).containsExactly(seam);
+        }
+
+        imageEdit.deleteColumn(imageEdit.highlightColumn("r"));
+        imageEdit.undo();
+        assertThat(imageData.getGeneration()).isEqualTo(generation);
+        assertThat(imageData.findSeam(false)).containsExactly(seam);
+
+        imageData.store().setRgb(5, seam[5], 0xffffff);
+        ImageData fresh = new ImageData();
+        fresh.setStore(imageData.store().copy());
+        fresh.store().invalidateEnergy();
+        assertThat(imageData.findSeam(false)).containsExactly(fresh.findSeam(false));
+        imageEdit.close();
+    }
+
+    /**
+     * Tests that the bluest straight column matches summing every column, follows deletes and undos,
+     * and that a blue seam search leaves the energies alone.
+     */
+    @Test
+    public void testBluestColumn() {
+        ImageEdit imageEdit = new ImageEdit();
+        ImageData imageData = imageEdit.imageData;
+        imageData.setStore(PixelStoreTest.randomStore(50, 30, 52));
+        for (int i = 0; i < 5; i++) {
+            assertThat(imageData.bluestColumn()).isEqualTo(bluestByBruteForce(imageData.store()));
+            imageEdit.deleteColumn(imageEdit.highlightColumn(i % 2 == 0 ? "c" : "r"));
+        }
+        assertThat(imageData.getWidth()).isEqualTo(45);
+        imageEdit.undo();
+        imageEdit.undo();
+        assertThat(imageData.bluestColumn()).isEqualTo(bluestByBruteForce(imageData.store()));
+
+        assertThat(imageData.store().getEnergyGeneration()).isEqualTo(-1);
+        imageData.findSeam(true);
+        assertThat(imageData.store().getEnergyGeneration()).isEqualTo(-1);
+        imageEdit.close();
+    }
+
+    /**
+     * @return the leftmost column with the greatest sum of blue, summed pixel by pixel
+     */
+    private static int bluestByBruteForce(PixelStore store) {
+        int best = 0;
+        long bestSum = -1;
+        for (int x = 0; x < store.getWidth(); x++) {
+            long sum = 0;
+            for (int y = 0; y < store.getHeight(); y++) {
+                sum += store.getRgb(y, x) & 0xff;
+            }
+            if (sum > bestSum) {
+                best = x;
+                bestSum = sum;
+            }
+        }
+        return best;
+    }
 }
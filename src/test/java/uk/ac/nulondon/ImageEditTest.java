@@ -38,9 +38,9 @@ public class ImageEditTest {
                 }
             }
         }
-        imageEdit.imageData.pixels.clear();
+        imageEdit.imageData.pixels().clear();
         for (int y = 0; y < 3; y++) {
-            imageEdit.imageData.pixels.add(grid[y][0]);
+            imageEdit.imageData.pixels().add(grid[y][0]);
         }
     }
 
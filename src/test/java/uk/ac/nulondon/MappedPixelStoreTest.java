@@ -0,0 +1,126 @@
+package uk.ac.nulondon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the MappedPixelStore class with tiny bands, so every image spans many decode bands and
+ * more mapped bands than the window holds.
+ */
+public class MappedPixelStoreTest {
+
+    /**
+     * Writes a random store as a PNG and imports it into a mapped store with small bands.
+     */
+    private static MappedPixelStore mapped(PixelStore source, Path dir) throws IOException {
+        File file = dir.resolve("source.png").toFile();
+        ImageIO.write(source.toImage(), "png", file);
+        return MappedPixelStore.importImage(file.getPath(), dir, 1000, 1000, 2000, 2);
+    }
+
+    /**
+     * Tests that band-by-band import reads the same colors as decoding the whole image.
+     */
+    @Test
+    void importShouldMatchSource(@TempDir Path dir) throws IOException {
+        PixelStore source = PixelStoreTest.randomStore(120, 90, 40);
+        try (MappedPixelStore store = mapped(source, dir)) {
+            assertThat(store.getWidth()).isEqualTo(120);
+            assertThat(store.getHeight()).isEqualTo(90);
+            assertThat(MappedPixelStore.imageSize(dir.resolve("source.png").toString())).containsExactly(120, 90);
+            int[] row = new int[120];
+            for (int y = 0; y < 90; y++) {
+                store.readRow(y, row);
+                for (int x = 0; x < 120; x++) {
+                    assertThat(row[x]).isEqualTo(source.getRgb(y, x));
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that a PNG, whose reader decodes from the top for every band, gets the larger
+     * sequential bands and still reads every row right.
+     */
+    @Test
+    void sequentialReaderShouldUseLargerBands(@TempDir Path dir) throws IOException {
+        assertThat(MappedPixelStore.bandRows(true, 60, 50, 120, 1200)).isEqualTo(2);
+        assertThat(MappedPixelStore.bandRows(false, 60, 50, 120, 1200)).isEqualTo(20);
+        assertThat(MappedPixelStore.bandRows(false, 60, 50, 120, 1 << 20)).isEqualTo(50);
+        assertThat(MappedPixelStore.bandRows(true, 60, 50, 1, 1)).isEqualTo(1);
+        assertThat(MappedPixelStore.sequentialPixels()).isGreaterThanOrEqualTo(MappedPixelStore.DECODE_PIXELS);
+
+        PixelStore source = PixelStoreTest.randomStore(60, 50, 41);
+        File file = dir.resolve("source.png").toFile();
+        ImageIO.write(source.toImage(), "png", file);
+        assertThat(ImageIO.getImageReadersByFormatName("png").next().isRandomAccessEasy(0)).isFalse();
+        try (MappedPixelStore store = MappedPixelStore.importImage(file.getPath(), dir, 60, 60 * 20, 2000, 2)) {
+            int[] row = new int[60];
+            for (int y = 0; y < 50; y++) {
+                store.readRow(y, row);
+                for (int x = 0; x < 60; x++) {
+                    assertThat(row[x]).isEqualTo(source.getRgb(y, x));
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that streaming seams over the mapped file finds and removes exactly the seams the heap store does.
+     */
+    @Test
+    void carvingShouldMatchPixelStore(@TempDir Path dir) throws IOException {
+        ImageData imageData = new ImageData();
+        imageData.setStore(PixelStoreTest.randomStore(120, 90, 41));
+        try (MappedPixelStore store = mapped(imageData.store().copy(), dir)) {
+            assertThat(store.findSeam(true)).containsExactly(imageData.findSeam(true));
+            for (int i = 0; i < 15; i++) {
+                int[] expected = imageData.findSeam(false);
+                assertThat(store.findSeam(false)).containsExactly(expected);
+                assertThat(store.removeSeam(expected)).containsExactly(imageData.store().removeSeam(expected));
+            }
+            assertThat(store.getWidth()).isEqualTo(105);
+            int[] row = new int[105];
+            for (int y = 0; y < 90; y++) {
+                store.readRow(y, row);
+                for (int x = 0; x < 105; x++) {
+                    assertThat(row[x]).isEqualTo(imageData.store().getRgb(y, x));
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that the row-streamed image exports the carved pixels unchanged as PNG and PPM.
+     */
+    @Test
+    void exportShouldStreamRows(@TempDir Path dir) throws IOException {
+        PixelStore source = PixelStoreTest.randomStore(70, 50, 42);
+        try (MappedPixelStore store = mapped(source, dir)) {
+            assertThat(store.carveColumns(8)).isEqualTo(8);
+            File png = dir.resolve("out.png").toFile();
+            File ppm = dir.resolve("out.ppm").toFile();
+            store.exportImage(png.getPath(), OutputFormat.PNG);
+            store.exportImage(ppm.getPath(), OutputFormat.PPM);
+
+            BufferedImage written = ImageIO.read(png);
+            assertThat(written.getWidth()).isEqualTo(62);
+            assertThat(ppm.length()).isEqualTo("P6\n62 50\n255\n".length() + 62 * 50 * 3);
+            int[] row = new int[62];
+            for (int y = 0; y < 50; y++) {
+                store.readRow(y, row);
+                for (int x = 0; x < 62; x++) {
+                    assertThat(written.getRGB(x, y) & 0xffffff).isEqualTo(row[x]);
+                }
+            }
+        }
+    }
+}
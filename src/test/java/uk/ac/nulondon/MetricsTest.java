@@ -0,0 +1,126 @@
+package uk.ac.nulondon;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the Metrics class, making sure every stage of a carving session is counted,
+ * reporters see the counters and nothing is recorded while metrics are off.
+ */
+public class MetricsTest {
+
+    @AfterEach
+    void disable() {
+        Metrics.enable(false);
+        Metrics.reset();
+    }
+
+    /**
+     * Imports an image, carves it, undoes part of it and exports it.
+     */
+    private static void session(Path dir) throws IOException {
+        File source = dir.resolve("source.png").toFile();
+        OutputFormat.PNG.write(PixelStoreTest.randomStore(40, 30, 50).toImage(), source);
+        ImageEdit edit = new ImageEdit();
+        edit.imageData.importImage(source.getPath());
+        edit.imageData.iterateEnergy();
+        edit.carveTo(35, 30);
+        edit.deleteColumn(edit.highlightColumn("b"));
+        edit.undo();
+        edit.imageData.exportImage(dir.resolve("out.png").toString());
+        edit.close();
+    }
+
+    /**
+     * Tests that each stage is timed and the counters add up.
+     */
+    @Test
+    void shouldRecordEveryStage(@TempDir Path dir) throws IOException {
+        Metrics.enable(true);
+        Metrics.reset();
+        session(dir);
+
+        Metrics.Snapshot snapshot = Metrics.snapshot();
+        assertThat(snapshot.count(Metrics.Stage.DECODE)).isEqualTo(1);
+        assertThat(snapshot.pixels(Metrics.Stage.DECODE)).isEqualTo(40 * 30);
+        assertThat(snapshot.count(Metrics.Stage.ENERGY)).isGreaterThanOrEqualTo(6);
+        assertThat(snapshot.count(Metrics.Stage.SEARCH)).isGreaterThanOrEqualTo(6);
+        assertThat(snapshot.count(Metrics.Stage.DELETE)).isEqualTo(6);
+        assertThat(snapshot.count(Metrics.Stage.UNDO)).isEqualTo(1);
+        assertThat(snapshot.pixels(Metrics.Stage.UNDO)).isEqualTo(30);
+        assertThat(snapshot.count(Metrics.Stage.ENCODE)).isEqualTo(2);
+        assertThat(snapshot.seamsRemoved()).isEqualTo(6);
+        assertThat(snapshot.bytesWritten()).isEqualTo(dir.resolve("source.png").toFile().length()
+                + dir.resolve("out.png").toFile().length());
+        assertThat(snapshot.journalEntries()).isEqualTo(1);
+        assertThat(snapshot.seamsPerSecond()).isPositive();
+        assertThat(snapshot.toLogLine()).contains("decode=1/", "seams=6");
+        assertThat(snapshot.toJson()).contains("\"delete\": {\"count\": 6", "\"seamsRemoved\": 6",
+                "\"undoJournal\": {\"entries\": 1");
+    }
+
+    /**
+     * Tests that nothing is counted while metrics are off.
+     */
+    @Test
+    void disabledShouldRecordNothing(@TempDir Path dir) throws IOException {
+        Metrics.reset();
+        session(dir);
+
+        Metrics.Snapshot snapshot = Metrics.snapshot();
+        for (Metrics.Stage stage : Metrics.Stage.values()) {
+            assertThat(snapshot.count(stage)).isZero();
+        }
+        assertThat(snapshot.seamsRemoved()).isZero();
+        assertThat(snapshot.bytesWritten()).isZero();
+    }
+
+    /**
+     * Tests that a scheduled JSON reporter writes one last dump when stopped.
+     */
+    @Test
+    void stopShouldFlushReporters(@TempDir Path dir) throws IOException {
+        Metrics.enable(true);
+        Metrics.reset();
+        Path json = dir.resolve("metrics.json");
+        Metrics.schedule(Metrics.jsonReporter(json), 1, TimeUnit.HOURS);
+        session(dir);
+        Metrics.stop();
+
+        assertThat(Files.readString(json)).contains("\"seamsRemoved\": 6", "\"encode\": {\"count\": 2");
+    }
+
+    /**
+     * Tests that each timed stage shows up in a flight recording.
+     */
+    @Test
+    void shouldEmitFlightRecorderEvents(@TempDir Path dir) throws IOException {
+        Metrics.enable(true);
+        Path file = dir.resolve("stages.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("uk.ac.nulondon.Stage");
+            recording.start();
+            session(dir);
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        assertThat(events).extracting(event -> event.getString("stage"))
+                .contains("DECODE", "ENERGY", "SEARCH", "DELETE", "UNDO", "ENCODE");
+        assertThat(events).filteredOn(event -> event.getString("stage").equals("DECODE"))
+                .extracting(event -> event.getLong("pixels")).containsExactly(40L * 30);
+    }
+}
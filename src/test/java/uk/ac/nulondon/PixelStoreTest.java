@@ -0,0 +1,339 @@
+package uk.ac.nulondon;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the PixelStore class, making sure the packed arrays behave like the linked Pixel graph.
+ */
+public class PixelStoreTest {
+
+    /**
+     * Builds a linked graph of random pixels the same way ImageData used to.
+     */
+    static List<Pixel> randomGraph(int width, int height, long seed) {
+        Random random = new Random(seed);
+        List<Pixel> rows = new ArrayList<>();
+        for (int y = 0; y < height; y++) {
+            Pixel previous = null;
+            for (int x = 0; x < width; x++) {
+                Pixel current = new Pixel(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+                if (previous == null) {
+                    rows.add(current);
+                } else {
+                    previous.setRight(current);
+                    current.setLeft(previous);
+                }
+                previous = current;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Builds a store of random pixels directly, for images too large to build as a graph.
+     */
+    static PixelStore randomStore(int width, int height, long seed) {
+        Random random = new Random(seed);
+        PixelStore store = new PixelStore(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                store.setRgb(y, x, random.nextInt(1 << 24));
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Tests that fromPixels copies every color of the graph into the store.
+     */
+    @Test
+    void fromPixelsShouldCopyColors() {
+        List<Pixel> rows = randomGraph(5, 4, 1);
+        PixelStore store = PixelStore.fromPixels(rows);
+        assertThat(store.getWidth()).isEqualTo(5);
+        assertThat(store.getHeight()).isEqualTo(4);
+        Pixel p = rows.get(2).getRight().getRight();
+        assertThat(store.getRgb(2, 2)).isEqualTo(PixelStore.pack(p.getRed(), p.getGreen(), p.getBlue()));
+    }
+
+    /**
+     * Tests that the store computes exactly the energies ImageData.calcEnergy gives on the graph.
+     */
+    @Test
+    void energyShouldMatchPixelGraph() {
+        List<Pixel> rows = randomGraph(7, 6, 2);
+        PixelStore store = PixelStore.fromPixels(rows);
+        ImageData legacy = new ImageData();
+        for (int y = 0; y < rows.size(); y++) {
+            Pixel up = y > 0 ? rows.get(y - 1) : rows.get(y);
+            Pixel down = y < rows.size() - 1 ? rows.get(y + 1) : rows.get(y);
+            Pixel middle = rows.get(y);
+            for (int x = 0; x < 7; x++) {
+                assertThat(store.calcEnergy(y, x)).isEqualTo(legacy.calcEnergy(up, middle, down));
+                up = up.getRight();
+                down = down.getRight();
+                middle = middle.getRight();
+            }
+        }
+    }
+
+    /**
+     * Tests that removing a seam compacts each row and inserting it again restores the image.
+     */
+    @Test
+    void removeAndInsertSeamShouldRoundTrip() {
+        PixelStore store = PixelStore.fromPixels(randomGraph(6, 3, 3));
+        int[] before = new int[18];
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 6; x++) {
+                before[y * 6 + x] = store.getRgb(y, x);
+            }
+        }
+        int[] seam = {2, 3, 2};
+        int[] removed = store.removeSeam(seam);
+        assertThat(store.getWidth()).isEqualTo(5);
+        assertThat(removed).containsExactly(before[2], before[9], before[14]);
+        assertThat(store.getRgb(1, 3)).isEqualTo(before[10]);
+
+        store.insertSeam(seam, removed);
+        assertThat(store.getWidth()).isEqualTo(6);
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 6; x++) {
+                assertThat(store.getRgb(y, x)).isEqualTo(before[y * 6 + x]);
+            }
+        }
+    }
+
+    /**
+     * Tests that refreshing only the dirty bands after edits gives the same energies as a full pass.
+     */
+    @Test
+    void refreshEnergyShouldMatchFullRecompute() {
+        PixelStore store = PixelStore.fromPixels(randomGraph(9, 8, 5));
+        store.computeEnergy();
+        int[] first = {3, 4, 4, 5, 6, 5, 4, 3};
+        int[] firstColors = store.removeSeam(first);
+        store.setRgb(2, 6, 0xff0000);
+        store.removeSeam(new int[] {0, 0, 1, 0, 1, 2, 2, 1});
+        store.insertSeam(first, firstColors);
+        store.refreshEnergy();
+
+        PixelStore expected = store.copy();
+        expected.computeEnergy();
+        for (int y = 0; y < store.getHeight(); y++) {
+            for (int x = 0; x < store.getWidth(); x++) {
+                assertThat(store.getEnergy(y, x)).isEqualTo(expected.getEnergy(y, x));
+            }
+        }
+    }
+
+    /**
+     * Tests that computing the energy in row stripes on a pool gives bit-identical results.
+     */
+    @Test
+    void parallelEnergyShouldMatchSequential() {
+        PixelStore sequential = randomStore(200, 500, 6);
+        PixelStore parallel = sequential.copy();
+        sequential.computeEnergy();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            parallel.computeEnergy(pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertThat(parallel.energy()).containsExactly(sequential.energy());
+    }
+
+    /**
+     * Tests that removing and inserting a horizontal seam round trips and keeps the energy map exact.
+     */
+    @Test
+    void horizontalSeamShouldRoundTripAndRefreshEnergy() {
+        PixelStore store = randomStore(7, 9, 9);
+        store.computeEnergy();
+        PixelStore original = store.copy();
+        int[] seam = {4, 5, 6, 7, 8, 8, 7};
+        int[] removed = store.removeHorizontalSeam(seam);
+        assertThat(store.getHeight()).isEqualTo(8);
+        assertThat(removed[3]).isEqualTo(original.getRgb(7, 3));
+        assertThat(store.getRgb(7, 3)).isEqualTo(original.getRgb(8, 3));
+        assertThat(store.getRgb(7, 4)).isEqualTo(original.getRgb(7, 4));
+
+        store.refreshEnergy();
+        PixelStore expected = store.copy();
+        expected.computeEnergy();
+        assertThat(store.energy()).containsExactly(expected.energy());
+
+        store.insertHorizontalSeam(seam, removed);
+        store.refreshEnergy();
+        assertThat(store.getHeight()).isEqualTo(9);
+        assertThat(store.rgb()).containsExactly(original.rgb());
+        assertThat(store.energy()).containsExactly(original.energy());
+    }
+
+    /**
+     * Tests that bulk import reads the same colors as getRGB for the common image types,
+     * and that export writes them back unchanged.
+     */
+    @Test
+    void fromImageShouldMatchGetRgb() {
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_BGR,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY,
+            BufferedImage.TYPE_INT_ARGB_PRE};
+        Random random = new Random(15);
+        for (int type : types) {
+            BufferedImage image = new BufferedImage(11, 7, type);
+            for (int y = 0; y < 7; y++) {
+                for (int x = 0; x < 11; x++) {
+                    image.setRGB(x, y, random.nextInt());
+                }
+            }
+            PixelStore store = PixelStore.fromImage(image);
+            BufferedImage exported = store.toImage();
+            for (int y = 0; y < 7; y++) {
+                for (int x = 0; x < 11; x++) {
+                    assertThat(store.getRgb(y, x)).isEqualTo(image.getRGB(x, y) & 0xffffff);
+                    assertThat(exported.getRGB(x, y) & 0xffffff).isEqualTo(store.getRgb(y, x));
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that bulk import handles a sub-image whose raster starts inside a larger buffer.
+     */
+    @Test
+    void fromImageShouldHandleSubImages() {
+        PixelStore source = randomStore(12, 9, 16);
+        BufferedImage sub = source.toImage().getSubimage(3, 2, 6, 5);
+        PixelStore store = PixelStore.fromImage(sub);
+        for (int y = 0; y < 5; y++) {
+            for (int x = 0; x < 6; x++) {
+                assertThat(store.getRgb(y, x)).isEqualTo(source.getRgb(y + 2, x + 3));
+            }
+        }
+    }
+
+    /**
+     * Tests that the brightness plane keeps matching the colors through every kind of edit.
+     */
+    @Test
+    void brightnessShouldFollowEdits() {
+        PixelStore store = PixelStore.fromImage(randomStore(40, 25, 12).toImage());
+        assertBrightnessMatches(store);
+
+        int[] columns = new int[25];
+        int[] rows = new int[41];
+        for (int y = 0; y < 25; y++) columns[y] = (y * 7) % 40;
+        for (int x = 0; x < 41; x++) rows[x] = (x * 3) % 25;
+        int[] removed = store.removeSeam(columns);
+        assertBrightnessMatches(store);
+        store.ensureCapacity(60);
+        store.insertSeam(columns, removed);
+        store.insertSeam(columns, removed);
+        assertBrightnessMatches(store);
+        int[] removedRow = store.removeHorizontalSeam(rows);
+        store.setRgb(3, 4, 0x123456);
+        assertBrightnessMatches(store);
+        store.insertHorizontalSeam(rows, removedRow);
+        assertBrightnessMatches(store);
+        assertBrightnessMatches(store.copy());
+    }
+
+    /**
+     * Tests that the column sums keep matching a fresh sum of every column through every kind of edit,
+     * with straight and curved seams, and in a copy that is edited on its own.
+     */
+    @Test
+    void columnStatsShouldFollowEdits() {
+        PixelStore store = randomStore(40, 25, 13);
+        store.columnStats();
+        int[] straight = new int[25];
+        int[] curved = new int[25];
+        for (int y = 0; y < 25; y++) {
+            straight[y] = 39;
+            curved[y] = 10 + (y * 7) % 20;
+        }
+        int[] removedStraight = store.removeSeam(straight);
+        int[] removedCurved = store.removeSeam(curved);
+        assertColumnStatsMatch(store);
+        store.ensureCapacity(60);
+        store.insertSeam(curved, removedCurved);
+        store.insertSeam(straight, removedStraight);
+        store.insertSeam(straight, removedStraight);
+        assertColumnStatsMatch(store);
+
+        int[] rows = new int[41];
+        for (int x = 0; x < 41; x++) rows[x] = (x * 3) % 25;
+        int[] removedRow = store.removeHorizontalSeam(rows);
+        store.setRgb(3, 4, 0x123456);
+        assertColumnStatsMatch(store);
+        PixelStore copy = store.copy();
+        store.insertHorizontalSeam(rows, removedRow);
+        copy.setRgb(0, 0, 0x0000ff);
+        assertColumnStatsMatch(store);
+        assertColumnStatsMatch(copy);
+    }
+
+    /**
+     * Tests that a copy-on-write copy shares the planes until either store writes, and that writes
+     * and energy passes on one never show up in the other.
+     */
+    @Test
+    void copyOnWriteShouldKeepStoresApart() {
+        PixelStore source = randomStore(30, 20, 14);
+        PixelStore expected = source.copy();
+        PixelStore copy = source.copyOnWrite();
+        assertThat(copy.rgb()).isSameAs(source.rgb());
+
+        copy.computeEnergy();
+        assertThat(copy.rgb()).isNotSameAs(source.rgb());
+        int[] columns = new int[20];
+        for (int y = 0; y < 20; y++) columns[y] = (y * 5) % 30;
+        copy.removeSeam(columns);
+        copy.setRgb(0, 0, 0xabcdef);
+        assertThat(source.energy()).containsExactly(expected.energy());
+        assertThat(source.rgb()).containsExactly(expected.rgb());
+        assertThat(source.luma()).containsExactly(expected.luma());
+        assertThat(source.getWidth()).isEqualTo(30);
+
+        PixelStore second = source.copyOnWrite();
+        source.setRgb(1, 1, 0x010203);
+        assertThat(second.getRgb(1, 1)).isEqualTo(expected.getRgb(1, 1));
+        assertThat(copy.getWidth()).isEqualTo(29);
+        assertThat(copy.getRgb(0, 0)).isEqualTo(0xabcdef);
+    }
+
+    /**
+     * Checks the column sums of a store against summing every column again.
+     */
+    private static void assertColumnStatsMatch(PixelStore store) {
+        ColumnStats fresh = new ColumnStats(store);
+        for (int x = 0; x < store.getWidth(); x++) {
+            for (int channel : new int[] {ColumnStats.RED, ColumnStats.GREEN, ColumnStats.BLUE}) {
+                assertThat(store.columnStats().sum(channel, x)).isEqualTo(fresh.sum(channel, x));
+            }
+        }
+    }
+
+    /**
+     * Checks every brightness of a store against the average of its channels.
+     */
+    private static void assertBrightnessMatches(PixelStore store) {
+        for (int y = 0; y < store.getHeight(); y++) {
+            for (int x = 0; x < store.getWidth(); x++) {
+                int color = store.getRgb(y, x);
+                assertThat(store.brightness(y, x))
+                        .isEqualTo((((color >> 16) & 0xff) + ((color >> 8) & 0xff) + (color & 0xff)) / 3);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package uk.ac.nulondon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the PreviewExporter and OutputFormat classes, making sure previews are snapshots,
+ * the latest one always lands and every format keeps the colors.
+ */
+public class PreviewExporterTest {
+
+    /**
+     * Tests that flushing writes the last preview as it was when submitted, even after later edits.
+     */
+    @Test
+    void flushShouldWriteLatestSnapshot(@TempDir Path dir) throws IOException {
+        ImageData imageData = new ImageData();
+        imageData.setStore(PixelStoreTest.randomStore(20, 15, 21));
+        PreviewExporter previews = new PreviewExporter();
+        File last = null;
+        for (int i = 0; i < 5; i++) {
+            last = dir.resolve("preview" + i + ".png").toFile();
+            previews.submit(imageData, last.getPath());
+            if (i < 4) imageData.carveColumns(1);
+        }
+        PixelStore expected = imageData.store().copy();
+        // edits after the last submit must not show up in the preview
+        imageData.carveColumns(3);
+        previews.close();
+
+        BufferedImage written = ImageIO.read(last);
+        assertThat(written.getWidth()).isEqualTo(16);
+        for (int y = 0; y < 15; y++) {
+            for (int x = 0; x < 16; x++) {
+                assertThat(written.getRGB(x, y) & 0xffffff).isEqualTo(expected.getRgb(y, x));
+            }
+        }
+    }
+
+    /**
+     * Tests that every output format writes the colors back unchanged, PPM and PAM read by hand.
+     */
+    @Test
+    void outputFormatsShouldKeepColors(@TempDir Path dir) throws IOException {
+        PixelStore store = PixelStoreTest.randomStore(13, 6, 22);
+        for (String spec : new String[] {"png", "png:0", "png:9", "bmp", "ppm", "pam"}) {
+            OutputFormat format = OutputFormat.parse(spec);
+            File file = dir.resolve("out" + spec.replace(':', '_') + "." + format.extension()).toFile();
+            format.write(store.toImage(), file);
+            int[] colors;
+            if (spec.equals("ppm") || spec.equals("pam")) {
+                // the pixels are the last bytes of the file, after the text header
+                byte[] bytes = Files.readAllBytes(file.toPath());
+                int start = bytes.length - 13 * 6 * 3;
+                colors = new int[13 * 6];
+                for (int i = 0; i < colors.length; i++) {
+                    colors[i] = PixelStore.pack(bytes[start + i * 3] & 0xff, bytes[start + i * 3 + 1] & 0xff,
+                            bytes[start + i * 3 + 2] & 0xff);
+                }
+            } else {
+                colors = ImageIO.read(file).getRGB(0, 0, 13, 6, null, 0, 13);
+            }
+            for (int y = 0; y < 6; y++) {
+                for (int x = 0; x < 13; x++) {
+                    assertThat(colors[y * 13 + x] & 0xffffff).as(spec).isEqualTo(store.getRgb(y, x));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package uk.ac.nulondon;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests seams searched for on another thread through SeamTask.
+ */
+public class SeamTaskTest {
+
+    private static int[] columns(List<Pixel> seam) {
+        return seam.stream().mapToInt(p -> ((PixelView) p).getCol()).toArray();
+    }
+
+    /**
+     * Tests that an async highlight finds the same seam as highlightColumn and counts every row.
+     */
+    @Test
+    void asyncHighlightShouldMatchSynchronousOne() throws Exception {
+        for (String operation : new String[] {"r", "b", "c"}) {
+            ImageEdit sync = new ImageEdit();
+            sync.imageData.setStore(PixelStoreTest.randomStore(40, 30, 60));
+            ImageEdit async = new ImageEdit();
+            async.imageData.setStore(PixelStoreTest.randomStore(40, 30, 60));
+
+            List<Pixel> expected = sync.highlightColumn(operation);
+            SeamTask task = async.highlightColumnAsync(operation, 0);
+            assertThat(columns(task.get())).containsExactly(columns(expected));
+            assertThat(async.imageData.store().rgb()).isEqualTo(sync.imageData.store().rgb());
+            assertThat(async.editCount()).isEqualTo(1);
+            // the energy pass and the program each go through every row, blue seams skip the energy pass
+            long rows = switch (operation) {
+                case "r" -> 60;
+                case "b" -> 30;
+                default -> 0;
+            };
+            assertThat(task.getTotalRows()).isEqualTo(rows);
+            assertThat(task.getRowsDone()).isEqualTo(rows);
+            assertThat(task.getProgress()).isEqualTo(1);
+        }
+    }
+
+    /**
+     * Tests that a search stops at the row after its task is cancelled, in the energy pass or the
+     * program, and that the next search still finds the right seam.
+     */
+    @Test
+    void cancelledSearchShouldStopAtTheNextRow() {
+        ImageData untouched = new ImageData();
+        untouched.setStore(PixelStoreTest.randomStore(50, 40, 61));
+        int[] expected = columns(untouched.getSeam(false));
+        for (int stopAfter : new int[] {0, 20, 45}) {
+            ImageData imageData = new ImageData();
+            imageData.setStore(PixelStoreTest.randomStore(50, 40, 61));
+            SeamTask task = new SeamTask() {
+                @Override
+                void advance(int rows) {
+                    if (getRowsDone() >= stopAfter) cancel(false);
+                    super.advance(rows);
+                }
+            };
+            assertThatThrownBy(() -> imageData.getSeam(false, task)).isInstanceOf(CancellationException.class);
+            assertThat(task.getRowsDone()).isEqualTo(stopAfter);
+            assertThat(columns(imageData.getSeam(false))).containsExactly(expected);
+        }
+    }
+
+    /**
+     * Tests that a search past its deadline fails without highlighting, and does not hold up the next one.
+     */
+    @Test
+    void searchPastDeadlineShouldNotHighlight() throws Exception {
+        ImageEdit imageEdit = new ImageEdit();
+        imageEdit.imageData.setStore(PixelStoreTest.randomStore(30, 20, 62));
+        int[] before = imageEdit.imageData.store().rgb().clone();
+        Executor late = command -> new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            command.run();
+        }).start();
+
+        SeamTask task = imageEdit.highlightColumnAsync("r", 10, late);
+        assertThatThrownBy(task::get).isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(TimeoutException.class);
+        SeamTask next = imageEdit.highlightColumnAsync("r", 0);
+        assertThat(next.get()).hasSize(20);
+        assertThat(imageEdit.editCount()).isEqualTo(1);
+        imageEdit.undo();
+        assertThat(imageEdit.imageData.store().rgb()).isEqualTo(before);
+    }
+}
@@ -0,0 +1,97 @@
+package uk.ac.nulondon;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the UndoJournal class, making sure entries come back unchanged whether or not they were spilled.
+ */
+public class UndoJournalTest {
+
+    /**
+     * Tests that entries pushed past the budget are spilled and popped back newest first with the same contents.
+     */
+    @Test
+    void spilledEntriesShouldPopBackInOrder() {
+        Random random = new Random(30);
+        List<UndoJournal.Entry> pushed = new ArrayList<>();
+        try (UndoJournal journal = new UndoJournal(2000)) {
+            for (int i = 0; i < 20; i++) {
+                UndoJournal.Entry entry;
+                if (i % 3 == 2) {
+                    entry = UndoJournal.Entry.carve(randomSeams(random, 2, 40), randomSeams(random, 3, 40),
+                            randomSeams(random, 1, 25));
+                } else {
+                    entry = UndoJournal.Entry.highlight(random.ints(40, 0, 100).toArray(),
+                            random.ints(40).toArray(), i % 2 == 1);
+                    entry.setDeleted(random.nextBoolean());
+                }
+                entry.setBefore(random.nextLong());
+                entry.setAfter(random.nextLong());
+                journal.push(entry);
+                pushed.add(entry);
+            }
+            assertThat(journal.size()).isEqualTo(20);
+            assertThat(journal.spilledCount()).isGreaterThan(0);
+            assertThat(journal.heapBytes()).isLessThanOrEqualTo(2000);
+
+            for (int i = pushed.size() - 1; i >= 0; i--) {
+                UndoJournal.Entry expected = pushed.get(i);
+                UndoJournal.Entry actual = journal.pop();
+                assertThat(actual.getKind()).isEqualTo(expected.getKind());
+                assertThat(actual.isDeleted()).isEqualTo(expected.isDeleted());
+                assertThat(actual.getBefore()).isEqualTo(expected.getBefore());
+                assertThat(actual.getAfter()).isEqualTo(expected.getAfter());
+                assertThat(actual.getGroups()).containsExactly(expected.getGroups());
+                assertThat(actual.getPositions()).isDeepEqualTo(expected.getPositions());
+                assertThat(actual.getColors()).isDeepEqualTo(expected.getColors());
+            }
+            assertThat(journal.pop()).isNull();
+        }
+    }
+
+    /**
+     * Tests that a long run of highlight, delete and carve edits undoes exactly with a tiny heap budget.
+     */
+    @Test
+    void undoShouldWorkFromSpillFile() {
+        ImageEdit imageEdit = new ImageEdit();
+        imageEdit.setUndoMemory(0);
+        imageEdit.imageData.setStore(PixelStoreTest.randomStore(30, 20, 31));
+        int[] before = imageEdit.imageData.store().rgb().clone();
+        long generation = imageEdit.imageData.getGeneration();
+        for (int i = 0; i < 6; i++) {
+            imageEdit.deleteColumn(imageEdit.highlightColumn(i % 2 == 0 ? "b" : "r"));
+            imageEdit.deleteRow(imageEdit.highlightRow("r"));
+        }
+        imageEdit.highlightColumn("b");
+        imageEdit.carveTo(20, 12);
+        assertThat(imageEdit.editCount()).isEqualTo(14);
+
+        while (imageEdit.editCount() > 0) {
+            imageEdit.undo();
+        }
+        assertThat(imageEdit.imageData.getWidth()).isEqualTo(30);
+        assertThat(imageEdit.imageData.getHeight()).isEqualTo(20);
+        assertThat(imageEdit.imageData.store().rgb()).containsExactly(before);
+        assertThat(imageEdit.imageData.getGeneration()).isEqualTo(generation);
+        imageEdit.close();
+    }
+
+    /**
+     * Builds random seams as positions and colors.
+     */
+    private static List<Pair<int[], int[]>> randomSeams(Random random, int count, int length) {
+        List<Pair<int[], int[]>> seams = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            seams.add(Pair.of(random.ints(length, 0, 100).toArray(), random.ints(length).toArray()));
+        }
+        return seams;
+    }
+}
@@ -0,0 +1,99 @@
+package uk.ac.nulondon;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests the VectorKernels class against the scalar code it replaces, which must give exactly
+ * the same energies, seams and back-pointers, ties included.
+ */
+public class VectorKernelsTest {
+
+    @BeforeEach
+    void requireVectorModule() {
+        assumeTrue(PixelStore.VECTOR_KERNELS, "run with --add-modules jdk.incubator.vector");
+    }
+
+    /**
+     * Tests that the multiply-and-shift brightness matches dividing by three for every channel sum.
+     */
+    @Test
+    void brightnessShouldMatchDivision() {
+        int[] colors = new int[766];
+        for (int sum = 0; sum < colors.length; sum++) {
+            int red = Math.min(255, sum);
+            int green = Math.min(255, sum - red);
+            colors[sum] = PixelStore.pack(red, green, sum - red - green);
+        }
+        byte[] brightness = new byte[colors.length + 5];
+        VectorKernels.brightness(colors, 0, colors.length, brightness, 5);
+        int[] widened = new int[colors.length];
+        VectorKernels.widen(brightness, 5, colors.length, widened);
+        for (int sum = 0; sum < colors.length; sum++) {
+            assertThat(brightness[sum + 5] & 0xff).isEqualTo(sum / 3);
+            assertThat(widened[sum]).isEqualTo(sum / 3);
+        }
+    }
+
+    /**
+     * Tests that the energy kernel writes the same floats as the scalar formula, on odd widths,
+     * on partial row ranges and next to every edge.
+     */
+    @Test
+    void energyShouldMatchScalar() {
+        for (int width : new int[] {1, 2, 3, 17, 64, 131}) {
+            PixelStore store = PixelStoreTest.randomStore(width, 9, width);
+            store.computeEnergy();
+            assertEnergyMatches(store);
+
+            Arrays.fill(store.energy(), 0f);
+            for (int y = 0; y < store.getHeight(); y++) {
+                store.computeEnergy(y, width / 3, width - 1 - width / 4);
+                store.computeEnergy(y, 0, width / 3);
+                store.computeEnergy(y, width - 1 - width / 4, width - 1);
+            }
+            assertEnergyMatches(store);
+        }
+    }
+
+    /**
+     * Tests that vector and scalar searches find the same seams, on random images, on a flat image
+     * where every comparison is a tie, and on the parallel block path.
+     */
+    @Test
+    void seamsShouldMatchScalar() {
+        PixelStore flat = new PixelStore(50, 20);
+        PixelStore[] stores = {PixelStoreTest.randomStore(37, 40, 60), PixelStoreTest.randomStore(200, 30, 61), flat,
+            PixelStoreTest.randomStore(1200, 300, 62)};
+        ForkJoinPool pool = new ForkJoinPool(3);
+        for (PixelStore store : stores) {
+            store.computeEnergy();
+            for (boolean isBlue : new boolean[] {false, true}) {
+                SeamFinder vector = new SeamFinder(isBlue);
+                SeamFinder scalar = new SeamFinder(isBlue);
+                scalar.setVectorized(false);
+                assertThat(vector.find(store, null)).containsExactly(scalar.find(store, null));
+                assertThat(vector.find(store, pool)).containsExactly(scalar.find(store, pool));
+                assertThat(vector.findSeams(store, null, 5)).isDeepEqualTo(scalar.findSeams(store, null, 5));
+            }
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Checks every energy of a store against the scalar formula.
+     */
+    private static void assertEnergyMatches(PixelStore store) {
+        for (int y = 0; y < store.getHeight(); y++) {
+            for (int x = 0; x < store.getWidth(); x++) {
+                assertThat(store.getEnergy(y, x)).isEqualTo((float) store.calcEnergy(y, x));
+            }
+        }
+    }
+}